@@ -0,0 +1,29 @@
+package com.chaosinmotion.git.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point for the benchmark jar. This accepts the usual JMH command
+ * line options, but always attaches the GC profiler so that every run
+ * reports allocation rate (gc.alloc.rate.norm is bytes allocated per
+ * operation) alongside throughput.
+ */
+public class Benchmarks
+{
+	public static void main(String[] args) throws RunnerException,
+			CommandLineOptionException
+	{
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		ChainedOptionsBuilder opts = new OptionsBuilder()
+				.parent(cmd)
+				.addProfiler(GCProfiler.class);
+
+		new Runner(opts.build()).run();
+	}
+}
@@ -0,0 +1,92 @@
+package com.chaosinmotion.git.bench;
+
+import com.chaosinmotion.git.test.packfiles.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Benchmarks delta parsing, delta application and resolving the objects at
+ * the end of each delta chain.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DeltaBenchmark
+{
+	@State(Scope.Thread)
+	public static class Resolvers
+	{
+		ObjectResolver uncached;
+		ObjectResolver cached;
+		Delta delta;
+		byte[] base;
+		byte[] target;
+		int next;
+
+		@Setup(Level.Trial)
+		public void setup(RepositoryState state) throws IOException, DataFormatException
+		{
+			uncached = new ObjectResolver(state.mappedIndex, state.mappedPack, new DeltaBaseCache(0));
+			cached = new ObjectResolver(state.mappedIndex, state.mappedPack);
+
+			// The first delta of the first chain, and the base it applies to
+			PackReader.ObjectHeader h = state.mappedPack.readObjectHeader(state.repo.tipOffsets[0]);
+			delta = state.mappedPack.readDeltaData(h);
+			base = uncached.resolve(delta.offset).data;
+			target = new byte[(int)delta.resultSize];
+
+			/*
+			 *	Load the bases of every chain into the cache. The cached
+			 * 	benchmark is meant to measure applying each chain from its
+			 * 	cached base; if the resolver also cached the tips, it would
+			 * 	only measure cache lookups, so make sure it doesn't.
+			 */
+
+			for (long offset : state.repo.tipOffsets) cached.resolve(offset);
+
+			DeltaBaseCache cache = cached.getCache();
+			long misses = cache.getMisses();
+			cached.resolve(state.repo.tipOffsets[0]);
+			if (cache.getMisses() == misses) {
+				throw new IllegalStateException("Resolver caches chain tips; resolveTipCached would not resolve deltas");
+			}
+		}
+	}
+
+	@Benchmark
+	public Object resolveTipUncached(RepositoryState state, Resolvers r) throws IOException,
+			DataFormatException
+	{
+		return r.uncached.resolve(state.repo.tipOffsets[r.next++ % state.files]);
+	}
+
+	/**
+	 * Resolve the tip of each chain in turn, with the chain bases held in
+	 * the delta base cache.
+	 */
+	@Benchmark
+	public Object resolveTipCached(RepositoryState state, Resolvers r) throws IOException,
+			DataFormatException
+	{
+		return r.cached.resolve(state.repo.tipOffsets[r.next++ % state.files]);
+	}
+
+	@Benchmark
+	public int applyDelta(Resolvers r) throws IOException
+	{
+		return r.delta.apply(r.base, r.base.length, r.target);
+	}
+
+	@Benchmark
+	public Object readDelta(RepositoryState state, Resolvers r) throws IOException,
+			DataFormatException
+	{
+		PackReader.ObjectHeader h = state.mappedPack.readObjectHeader(state.repo.tipOffsets[r.next++ % state.files]);
+		return state.mappedPack.readDeltaData(h);
+	}
+}
@@ -0,0 +1,79 @@
+package com.chaosinmotion.git.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks object lookups in the pack index.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexBenchmark
+{
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		int next;
+	}
+
+	@Benchmark
+	public Object getRecordFile(RepositoryState state, Cursor cursor) throws IOException
+	{
+		byte[][] ids = state.repo.objectIds;
+		return state.index.getRecord(ids[cursor.next++ % ids.length]);
+	}
+
+	@Benchmark
+	public Object getRecordMapped(RepositoryState state, Cursor cursor) throws IOException
+	{
+		byte[][] ids = state.repo.objectIds;
+		return state.mappedIndex.getRecord(ids[cursor.next++ % ids.length]);
+	}
+
+	@Benchmark
+	public long findOffsetMapped(RepositoryState state, Cursor cursor) throws IOException
+	{
+		byte[][] ids = state.repo.objectIds;
+		int pos = state.mappedIndex.findPosition(ids[cursor.next++ % ids.length]);
+		return state.mappedIndex.getOffset(pos);
+	}
+
+	/**
+	 * Look up every object in the repository, one at a time
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@BenchmarkMode(Mode.AverageTime)
+	public void lookupAllSingly(RepositoryState state, Blackhole bh) throws IOException
+	{
+		for (byte[] id : state.repo.objectIds) {
+			bh.consume(state.mappedIndex.findPosition(id));
+		}
+	}
+
+	/**
+	 * Look up every object in the repository in one batch
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@BenchmarkMode(Mode.AverageTime)
+	public int[] lookupAllBatch(RepositoryState state) throws IOException
+	{
+		return state.mappedIndex.findPositions(state.repo.objectIds, null);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@BenchmarkMode(Mode.AverageTime)
+	public int[] lookupAllBatchParallel(RepositoryState state) throws IOException
+	{
+		return state.mappedIndex.findPositions(state.repo.objectIds, ForkJoinPool.commonPool());
+	}
+}
@@ -0,0 +1,49 @@
+package com.chaosinmotion.git.bench;
+
+import com.chaosinmotion.git.test.packfiles.PackReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+
+/**
+ * Benchmarks reading and inflating whole (non-delta) objects from the pack.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InflateBenchmark
+{
+	@State(Scope.Thread)
+	public static class Cursor
+	{
+		int next;
+	}
+
+	@Benchmark
+	public byte[] inflateFile(RepositoryState state, Cursor cursor) throws IOException,
+			DataFormatException
+	{
+		return inflate(state.pack, state.repo.baseOffsets[cursor.next++ % state.files]);
+	}
+
+	@Benchmark
+	public byte[] inflateMapped(RepositoryState state, Cursor cursor) throws IOException,
+			DataFormatException
+	{
+		return inflate(state.mappedPack, state.repo.baseOffsets[cursor.next++ % state.files]);
+	}
+
+	private static byte[] inflate(PackReader pr, long offset) throws IOException,
+			DataFormatException
+	{
+		PackReader.ObjectHeader h = pr.readObjectHeader(offset);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream((int)h.size);
+		pr.readObjectData(h, baos);
+		return baos.toByteArray();
+	}
+}
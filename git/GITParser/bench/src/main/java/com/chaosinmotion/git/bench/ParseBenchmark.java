@@ -0,0 +1,38 @@
+package com.chaosinmotion.git.bench;
+
+import com.chaosinmotion.git.test.objects.CommitReader;
+import com.chaosinmotion.git.test.objects.TreeReader;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks parsing tree and commit objects that have already been read
+ * from the pack.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark
+{
+	@Benchmark
+	public void readTree(RepositoryState state, Blackhole bh) throws IOException
+	{
+		TreeReader t = new TreeReader(new ByteArrayInputStream(state.repo.treeData));
+		TreeReader.Record r;
+		while (null != (r = t.read())) {
+			bh.consume(r);
+		}
+	}
+
+	@Benchmark
+	public Object readCommit(RepositoryState state) throws IOException
+	{
+		return new CommitReader(new ByteArrayInputStream(state.repo.commitData));
+	}
+}
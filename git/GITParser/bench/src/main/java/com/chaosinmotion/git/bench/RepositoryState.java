@@ -0,0 +1,54 @@
+package com.chaosinmotion.git.bench;
+
+import com.chaosinmotion.git.test.packfiles.IndexReader;
+import com.chaosinmotion.git.test.packfiles.PackReader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+
+/**
+ * Shared benchmark state: a synthetic repository generated once per trial,
+ * with its index and pack opened both memory mapped and through a
+ * RandomAccessFile.
+ */
+@State(Scope.Benchmark)
+public class RepositoryState
+{
+	/// Number of files, and thus delta chains, in the repository
+	@Param({"1000"})
+	public int files;
+
+	/// Number of deltas in each chain
+	@Param({"10"})
+	public int depth;
+
+	/// Size of each file in bytes
+	@Param({"4096"})
+	public int blobSize;
+
+	public SyntheticRepository repo;
+	public IndexReader index;
+	public IndexReader mappedIndex;
+	public PackReader pack;
+	public PackReader mappedPack;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		repo = SyntheticRepository.create(files, depth, blobSize, 42);
+		index = new IndexReader(repo.indexFile);
+		mappedIndex = new IndexReader(repo.indexFile, true);
+		pack = new PackReader(repo.packFile);
+		mappedPack = new PackReader(repo.packFile, true);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		index.close();
+		mappedIndex.close();
+		pack.close();
+		mappedPack.close();
+		repo.delete();
+	}
+}
@@ -0,0 +1,460 @@
+package com.chaosinmotion.git.bench;
+
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.Stream;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Generates a synthetic GIT object directory containing a single pack file
+ * and its version 2 index, so the benchmarks need neither a network nor a
+ * checked out repository.
+ *
+ * The repository models a history of 'depth + 1' commits over 'files'
+ * files. Each commit has a tree listing every file; each successive version
+ * of a file changes a small span of bytes and is stored as an OFS_DELTA
+ * against the previous version. That gives us 'files' delta chains, each
+ * 'depth' deltas long, similar to what `git gc --aggressive` produces.
+ */
+public class SyntheticRepository
+{
+	private static final int COMMIT = 1;
+	private static final int TREE = 2;
+	private static final int BLOB = 3;
+	private static final int OFS_DELTA = 6;
+
+	/// The objects directory, the pack file and the index file
+	public final File objectDir;
+	public final File packFile;
+	public final File indexFile;
+
+	/// SHA-1 of every object in the pack
+	public final byte[][] objectIds;
+
+	/// SHA-1 and pack offset of the base (non-delta) version of each file
+	public final byte[][] baseIds;
+	public final long[] baseOffsets;
+
+	/// SHA-1 and pack offset of the last version of each file; these are
+	/// the objects at the end of each delta chain.
+	public final byte[][] tipIds;
+	public final long[] tipOffsets;
+
+	/// SHA-1 of each commit, oldest first
+	public final byte[][] commitIds;
+
+	/// The raw contents of the last tree and commit, for parse benchmarks
+	public final byte[] treeData;
+	public final byte[] commitData;
+
+	private SyntheticRepository(File objectDir, File packFile, File indexFile,
+			byte[][] objectIds, byte[][] baseIds, long[] baseOffsets,
+			byte[][] tipIds, long[] tipOffsets, byte[][] commitIds,
+			byte[] treeData, byte[] commitData)
+	{
+		this.objectDir = objectDir;
+		this.packFile = packFile;
+		this.indexFile = indexFile;
+		this.objectIds = objectIds;
+		this.baseIds = baseIds;
+		this.baseOffsets = baseOffsets;
+		this.tipIds = tipIds;
+		this.tipOffsets = tipOffsets;
+		this.commitIds = commitIds;
+		this.treeData = treeData;
+		this.commitData = commitData;
+	}
+
+	/**
+	 * Create a synthetic repository in a new temporary directory
+	 * @param files The number of files (and thus delta chains)
+	 * @param depth The number of deltas in each chain
+	 * @param blobSize The size of each file in bytes
+	 * @param seed The random seed, so runs are reproducible
+	 * @return The generated repository
+	 * @throws IOException
+	 */
+	public static SyntheticRepository create(int files, int depth, int blobSize, long seed) throws IOException
+	{
+		File root = File.createTempFile("synthetic", ".git");
+		if (!root.delete() || !root.mkdirs()) {
+			throw new IOException("Unable to create " + root);
+		}
+		File objectDir = new File(root, "objects");
+		File packDir = new File(objectDir, "pack");
+		if (!packDir.mkdirs()) {
+			throw new IOException("Unable to create " + packDir);
+		}
+
+		Random random = new Random(seed);
+		File tmpPack = new File(packDir, "tmp.pack");
+		PackWriter pack = new PackWriter(tmpPack, (files + 2) * (depth + 1));
+
+		byte[][] baseIds = new byte[files][];
+		long[] baseOffsets = new long[files];
+		byte[][] tipIds = new byte[files][];
+		long[] tipOffsets = new long[files];
+		byte[][] commitIds = new byte[depth + 1][];
+
+		byte[][] current = new byte[files][];
+		byte[] parent = null;
+		byte[] treeData = null;
+		byte[] commitData = null;
+
+		for (int version = 0; version <= depth; ++version) {
+			/*
+			 *	Write the next version of each file. The first version is
+			 * 	stored whole; later versions are deltas against the last.
+			 */
+
+			for (int f = 0; f < files; ++f) {
+				if (version == 0) {
+					current[f] = randomText(random, blobSize);
+					baseOffsets[f] = pack.position();
+					baseIds[f] = pack.writeWhole(BLOB, current[f]);
+					tipIds[f] = baseIds[f];
+					tipOffsets[f] = baseOffsets[f];
+				} else {
+					byte[] next = current[f].clone();
+					int len = Math.min(next.length, 1 + random.nextInt(64));
+					int pos = random.nextInt(next.length - len + 1);
+					byte[] patch = randomText(random, len);
+					System.arraycopy(patch, 0, next, pos, len);
+
+					byte[] delta = makeDelta(current[f].length, next, pos, len);
+					long offset = pack.position();
+					tipIds[f] = pack.writeDelta(BLOB, next, tipOffsets[f], delta);
+					tipOffsets[f] = offset;
+					current[f] = next;
+				}
+			}
+
+			/*
+			 *	Write the tree and the commit for this version
+			 */
+
+			treeData = makeTree(files, tipIds);
+			byte[] tree = pack.writeWhole(TREE, treeData);
+
+			commitData = makeCommit(tree, parent, version);
+			parent = pack.writeWhole(COMMIT, commitData);
+			commitIds[version] = parent;
+		}
+
+		byte[] packSha = pack.finish();
+		String name = "pack-" + Hex.toString(packSha);
+		File packFile = new File(packDir, name + ".pack");
+		File indexFile = new File(packDir, name + ".idx");
+		if (!tmpPack.renameTo(packFile)) {
+			throw new IOException("Unable to rename " + tmpPack);
+		}
+		pack.writeIndex(indexFile, packSha);
+
+		return new SyntheticRepository(objectDir, packFile, indexFile,
+				pack.ids(), baseIds, baseOffsets, tipIds, tipOffsets,
+				commitIds, treeData, commitData);
+	}
+
+	/**
+	 * Delete the generated repository
+	 */
+	public void delete()
+	{
+		deleteAll(objectDir.getParentFile());
+	}
+
+	private static void deleteAll(File f)
+	{
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) deleteAll(c);
+		}
+		f.delete();
+	}
+
+	/*
+	 *	Object content generators
+	 */
+
+	private static byte[] randomText(Random random, int len)
+	{
+		byte[] ret = new byte[len];
+		for (int i = 0; i < len; ++i) {
+			ret[i] = (byte)((i % 64 == 63) ? '\n' : 'a' + random.nextInt(26));
+		}
+		return ret;
+	}
+
+	private static byte[] makeTree(int files, byte[][] blobs) throws IOException
+	{
+		/*
+		 *	Tree entries must be sorted by name; zero padding our file
+		 * 	names keeps them in numeric order.
+		 */
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		for (int f = 0; f < files; ++f) {
+			baos.write(String.format("100644 file-%08d.txt", f).getBytes(StandardCharsets.UTF_8));
+			baos.write(0);
+			baos.write(blobs[f]);
+		}
+		return baos.toByteArray();
+	}
+
+	private static byte[] makeCommit(byte[] tree, byte[] parent, int version)
+	{
+		long time = 1700000000L + version * 3600L;
+
+		StringBuilder b = new StringBuilder();
+		b.append("tree ").append(Hex.toString(tree)).append('\n');
+		if (parent != null) {
+			b.append("parent ").append(Hex.toString(parent)).append('\n');
+		}
+		b.append("author Bench Author <author@example.com> ").append(time).append(" -0800\n");
+		b.append("committer Bench Committer <committer@example.com> ").append(time).append(" -0800\n");
+		b.append('\n');
+		b.append("Synthetic commit ").append(version).append('\n');
+		return b.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Build a delta which copies the base, replacing the span [pos,pos+len)
+	 * with the bytes from the target.
+	 */
+	private static byte[] makeDelta(int baseSize, byte[] target, int pos, int len) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		writeSize(baos, baseSize);
+		writeSize(baos, target.length);
+
+		writeCopy(baos, 0, pos);
+		for (int i = 0; i < len; i += 127) {
+			int n = Math.min(127, len - i);
+			baos.write(n);
+			baos.write(target, pos + i, n);
+		}
+		writeCopy(baos, pos + len, target.length - pos - len);
+
+		return baos.toByteArray();
+	}
+
+	private static void writeSize(OutputStream os, long size) throws IOException
+	{
+		do {
+			int b = (int)(size & 0x7f);
+			size >>>= 7;
+			if (size != 0) b |= 0x80;
+			os.write(b);
+		} while (size != 0);
+	}
+
+	private static void writeCopy(OutputStream os, int offset, int size) throws IOException
+	{
+		while (size > 0) {
+			int n = Math.min(size, 0x10000);
+
+			// Always write all four offset bytes and all three size bytes
+			os.write(0xff);
+			os.write(offset);
+			os.write(offset >>> 8);
+			os.write(offset >>> 16);
+			os.write(offset >>> 24);
+			os.write(n);
+			os.write(n >>> 8);
+			os.write(n >>> 16);
+
+			offset += n;
+			size -= n;
+		}
+	}
+
+	/**
+	 * Writes the objects of a pack file, and then the version 2 index.
+	 */
+	private static class PackWriter
+	{
+		private final OutputStream out;
+		private final MessageDigest packDigest;
+		private final Deflater deflater = new Deflater();
+		private final byte[] buffer = new byte[64 * 1024];
+		private final ArrayList<byte[]> ids = new ArrayList<>();
+		private final ArrayList<Long> offsets = new ArrayList<>();
+		private final ArrayList<Integer> crcs = new ArrayList<>();
+		private final File file;
+		private final int count;
+		private long pos;
+
+		PackWriter(File file, int count) throws IOException
+		{
+			this.file = file;
+			this.count = count;
+			this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+			this.packDigest = sha1();
+
+			ByteArrayOutputStream header = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(header);
+			dos.writeInt(0x5041434b);		// PACK
+			dos.writeInt(2);
+			dos.writeInt(count);
+			write(header.toByteArray());
+		}
+
+		long position()
+		{
+			return pos;
+		}
+
+		byte[][] ids()
+		{
+			return ids.toArray(new byte[0][]);
+		}
+
+		byte[] writeWhole(int type, byte[] content) throws IOException
+		{
+			byte[] sha = objectId(type, content);
+			long offset = pos;
+
+			ByteArrayOutputStream entry = new ByteArrayOutputStream();
+			writeHeader(entry, type, content.length);
+			deflate(entry, content);
+
+			record(sha, offset, entry.toByteArray());
+			return sha;
+		}
+
+		byte[] writeDelta(int type, byte[] content, long baseOffset, byte[] delta) throws IOException
+		{
+			byte[] sha = objectId(type, content);
+			long offset = pos;
+
+			ByteArrayOutputStream entry = new ByteArrayOutputStream();
+			writeHeader(entry, OFS_DELTA, delta.length);
+			Stream.writeSizeEncoded(offset - baseOffset, entry);
+			deflate(entry, delta);
+
+			record(sha, offset, entry.toByteArray());
+			return sha;
+		}
+
+		byte[] finish() throws IOException
+		{
+			if (ids.size() != count) {
+				throw new IOException("Object count mismatch");
+			}
+
+			byte[] sha = packDigest.digest();
+			out.write(sha);
+			out.close();
+			deflater.end();
+			return sha;
+		}
+
+		void writeIndex(File f, byte[] packSha) throws IOException
+		{
+			Integer[] order = new Integer[ids.size()];
+			for (int i = 0; i < order.length; ++i) order[i] = i;
+			java.util.Arrays.sort(order, (a, b) -> Hex.compare(ids.get(a), ids.get(b)));
+
+			MessageDigest md = sha1();
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			DataOutputStream dos = new DataOutputStream(baos);
+
+			dos.writeInt(0xff744f63);
+			dos.writeInt(2);
+
+			int[] fanout = new int[256];
+			for (byte[] id : ids) ++fanout[id[0] & 0xff];
+			int total = 0;
+			for (int i = 0; i < 256; ++i) {
+				total += fanout[i];
+				dos.writeInt(total);
+			}
+
+			for (Integer i : order) dos.write(ids.get(i));
+			for (Integer i : order) dos.writeInt(crcs.get(i));
+			for (Integer i : order) {
+				long offset = offsets.get(i);
+				if (offset > 0x7fffffffL) throw new IOException("Pack too large");
+				dos.writeInt((int)offset);
+			}
+			dos.write(packSha);
+			dos.flush();
+
+			md.update(baos.toByteArray());
+			dos.write(md.digest());
+			dos.close();
+
+			try (FileOutputStream fos = new FileOutputStream(f)) {
+				fos.write(baos.toByteArray());
+			}
+		}
+
+		private void record(byte[] sha, long offset, byte[] entry) throws IOException
+		{
+			CRC32 crc = new CRC32();
+			crc.update(entry);
+
+			ids.add(sha);
+			offsets.add(offset);
+			crcs.add((int)crc.getValue());
+			write(entry);
+		}
+
+		private void write(byte[] data) throws IOException
+		{
+			out.write(data);
+			packDigest.update(data);
+			pos += data.length;
+		}
+
+		private static void writeHeader(OutputStream os, int type, long size) throws IOException
+		{
+			int b = (type << 4) | (int)(size & 0x0f);
+			size >>>= 4;
+			while (size != 0) {
+				os.write(b | 0x80);
+				b = (int)(size & 0x7f);
+				size >>>= 7;
+			}
+			os.write(b);
+		}
+
+		private void deflate(OutputStream os, byte[] data) throws IOException
+		{
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			while (!deflater.finished()) {
+				int len = deflater.deflate(buffer);
+				os.write(buffer, 0, len);
+			}
+		}
+
+		private static byte[] objectId(int type, byte[] content)
+		{
+			String name = (type == COMMIT) ? "commit" : (type == TREE) ? "tree" : "blob";
+
+			MessageDigest md = sha1();
+			md.update((name + " " + content.length + "\0").getBytes(StandardCharsets.UTF_8));
+			md.update(content);
+			return md.digest();
+		}
+
+		private static MessageDigest sha1()
+		{
+			try {
+				return MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+}
@@ -1,13 +1,20 @@
+import com.chaosinmotion.git.test.common.ObjectId;
+import com.chaosinmotion.git.test.common.ObjectIdSet;
 import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.graph.CommitGraph;
+import com.chaosinmotion.git.test.graph.RevWalk;
 import com.chaosinmotion.git.test.objects.CommitReader;
+import com.chaosinmotion.git.test.objects.ObjectDatabase;
 import com.chaosinmotion.git.test.objects.ObjectReader;
+import com.chaosinmotion.git.test.objects.ObjectStream;
 import com.chaosinmotion.git.test.objects.TagReader;
-import com.chaosinmotion.git.test.objects.TreeReader;
+import com.chaosinmotion.git.test.objects.TreeCursor;
 import com.chaosinmotion.git.test.packfiles.Delta;
 import com.chaosinmotion.git.test.packfiles.IndexReader;
+import com.chaosinmotion.git.test.packfiles.ObjectResolver;
 import com.chaosinmotion.git.test.packfiles.PackReader;
+import com.chaosinmotion.git.test.packfiles.ResolvedObject;
 import com.chaosinmotion.git.test.utils.Hex;
-import com.chaosinmotion.git.test.utils.RandomAccessByteArray;
 import com.chaosinmotion.git.test.utils.Stream;
 
 import java.io.ByteArrayOutputStream;
@@ -15,8 +22,8 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.zip.DataFormatException;
 
 /**
@@ -81,21 +88,22 @@ public class Main
 	 * gets called with all the tree objects we encounter, but we ignore
 	 * anything that is not a tree object.
 	 *
+	 * @param db The object database to read the tree objects from
 	 * @param level How far down the tree structure we are. Used to adjust
 	 *              formatting of the output
 	 * @param tree The tree SHA-1 to visit
 	 * @param visited If we have already visited this level
 	 */
-	private static void dumpTree(File objRoot, int level, String tree, HashSet<String> visited) throws
+	private static void dumpTree(ObjectDatabase db, int level, ObjectId tree, ObjectIdSet visited) throws
 			IOException
 	{
-		// Open the tree object specified and parse the contents
-		File obj = ObjectReader.findFileInObjectDirectory(objRoot,tree);
-		if (!obj.exists()) {
+		// Open the tree object specified and parse the contents. The object
+		// database finds the object whether it is loose or packed.
+		ObjectStream reader = db.open(tree);
+		if (reader == null) {
 			System.out.println("### Object " + tree + " not found");
 			return;
 		}
-		ObjectReader reader = new ObjectReader(obj);
 
 		// Ignore if this is not actually a tree object
 		if (reader.getType() != ObjectType.TREE) {
@@ -104,28 +112,28 @@ public class Main
 		}
 
 		// Verify we haven't been to this tree before
-		if (visited.contains(tree)) {
+		if (!visited.add(tree)) {
 			System.out.println("### Object " + tree + " already visited");
+			reader.close();
 			return;
 		}
-		visited.add(tree);
 
-		// Parse the tree
-		TreeReader t = new TreeReader(reader);
+		// Parse the tree. Trees are small, so we read the whole thing and
+		// walk it with a cursor rather than allocating a record per entry.
+		TreeCursor t = new TreeCursor(reader.readAllBytes());
+		reader.close();
 
 		// Dump the contents, recursing down as needed
-		TreeReader.Record r;
-		while (null != (r = t.read())) {
+		while (t.next()) {
 			// Print the level depth
 			for (int i = 0; i < level; i++) System.out.print("  ");
 
 			// Print the contents at this row
-			String sha = Hex.toString(r.sha1);
-			System.out.printf("%-8s %s    %s\n", r.mode,sha,r.name);
+			ObjectId sha = t.getObjectId();
+			System.out.printf("%-8s %s    %s\n", Integer.toOctalString(t.getMode()),sha,t.getName());
 
-			dumpTree(objRoot, level + 1, sha, visited);
+			dumpTree(db, level + 1, sha, visited);
 		}
-		reader.close();
 	}
 
 	/**
@@ -139,25 +147,39 @@ public class Main
 	 * @param sha1
 	 */
 	public static void test1(String sha1) throws IOException
+	{
+		// We assume CWD is set to the root directory of our test objects,
+		// which on IntelliJ is the root of the project.
+		test1(new File("test/Test1/objects"), sha1);
+	}
+
+	/**
+	 * Like test1 above, but reads the objects from the specified objects
+	 * directory through the object database. This works the same whether
+	 * the objects are stored loose or in pack files.
+	 *
+	 * @param path The objects directory
+	 * @param sha1
+	 */
+	public static void test1(File path, String sha1) throws IOException
 	{
 		/*
 		 *	Step 1: Open the commit object for the SHA-1 hash provided.
 		 * 	If this is not a commit object, bail.
 		 */
 
-		// We assume CWD is set to the root directory of our test objects,
-		// which on IntelliJ is the root of the project.
-		File path = new File("test/Test1/objects");
-		File obj = ObjectReader.findFileInObjectDirectory(path,sha1);
-		if (!obj.exists()) {
+		ObjectDatabase db = new ObjectDatabase(path);
+		ObjectStream reader = db.open(sha1);
+		if (reader == null) {
+			db.close();
 			System.err.println("Object not found: " + sha1);
 			System.err.println("Is the current working directory set correctly?");
 			System.err.println();
 			return;
 		}
-		ObjectReader reader = new ObjectReader(obj);
 		if (reader.getType() != ObjectType.COMMIT) {
 			reader.close();
+			db.close();
 			System.err.println("Object is not a commit object: " + sha1);
 			return;
 		}
@@ -185,8 +207,9 @@ public class Main
 		 * 	(This is done out of an abundance of caution.)
 		 */
 
-		HashSet<String> visited = new HashSet<String>();
-		dumpTree(path,0,cr.tree,visited);
+		ObjectIdSet visited = new ObjectIdSet();
+		dumpTree(db,0,ObjectId.fromString(cr.tree),visited);
+		db.close();
 		System.out.println();
 		System.out.println();
 	}
@@ -267,7 +290,9 @@ public class Main
 		if (tag.type.equals("commit")) {
 			test1(tag.object);
 		} else if (tag.type.equals("tree")) {
-			dumpTree(path,0,tag.object,new HashSet<String>());
+			ObjectDatabase db = new ObjectDatabase(path);
+			dumpTree(db,0,ObjectId.fromString(tag.object),new ObjectIdSet());
+			db.close();
 		} else if (tag.type.equals("tag")) {
 			// Weird, but what can you say?
 			test2(tag.object);
@@ -450,11 +475,11 @@ public class Main
 	}
 
 	/**
-	 * This recursively constructs the file from the delta data. Unlike
+	 * This constructs the file from the delta data. Unlike
 	 * getDataFromPackFile, this understands delta files and resolves them.
 	 * If the data provided is a blob, this simply returns that blob.
-	 * Otherwise this recurses down to the base object, then applies the
-	 * delta to it.
+	 * Otherwise the object resolver walks down to the base object, then
+	 * applies the deltas to it.
 	 *
 	 * @param indexFile
 	 * @param sha1
@@ -468,74 +493,16 @@ public class Main
 		File packFile = new File(indexFile.getParentFile(),indexFile.getName().replace(".idx",".pack"));
 		PackReader pr = new PackReader(packFile);
 
-		IndexReader.Record rec = ir.getRecord(sha1);
-		if (rec == null) throw new IOException("Unkown SHA1 file " + sha1);
-
-		// The destination we're writing the contents to. This is an in-mmeory
-		// byte array, though this could be a scratch file.
-		byte[] ret = internalResolveDelta(ir,pr,rec.offset);
+		// The resolver caches the delta bases it reconstructs, so it is
+		// worth keeping around if we are reading more than one object.
+		ObjectResolver resolver = new ObjectResolver(ir,pr);
+		ResolvedObject obj = resolver.resolve(sha1);
+		if (obj == null) throw new IOException("Unkown SHA1 file " + sha1);
 
 		pr.close();
 		ir.close();
 
-		return ret;
-	}
-
-	/**
-	 * This internal routine does the heavy lifting of resolving a delta file.
-	 * This takes an index reader, a pack reader, and an offset to a packed object
-	 * header, and loads the header. If this is a delta object, this recurses
-	 * to get the base object this is based on, and applies the deltas to
-	 * it.
-	 * @param ir
-	 * @param pr
-	 * @param offset
-	 * @return
-	 */
-	private static byte[] internalResolveDelta(IndexReader ir, PackReader pr, long offset) throws
-			IOException, DataFormatException
-	{
-		PackReader.ObjectHeader h = pr.readObjectHeader(offset);
-		if ((h.type == ObjectType.OFSDelta) || (h.type == ObjectType.REFDelta)) {
-			// This is delta data. First, get the delta data
-			Delta d = pr.readDeltaData(h);
-
-			// Next, get the base data object for this delta
-			long baseOffset;
-			if (d.sha != null) {
-				IndexReader.Record r = ir.getRecord(d.sha);
-				baseOffset = r.offset;
-			} else {
-				baseOffset = d.offset;
-			}
-			byte[] base = internalResolveDelta(ir,pr,baseOffset);
-
-			if (base.length != d.baseSize) {
-				throw new IOException("Base size mismatch");
-			}
-
-			// Now apply the delta to the base data
-			RandomAccessByteArray raba = new RandomAccessByteArray(base);
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			d.apply(raba,baos);
-			raba.close();
-			baos.close();
-
-			byte[] result = baos.toByteArray();
-
-			if (result.length != d.resultSize) {
-				throw new IOException("Result size mismatch");
-			}
-
-			return result;
-
-		} else {
-			// This is blob data. Just read and return the data
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			pr.readObjectData(h,baos);
-			baos.close();
-			return baos.toByteArray();
-		}
+		return obj.data;
 	}
 
 	/**
@@ -591,6 +558,56 @@ public class Main
 		d.dump();
 	}
 
+	/**
+	 * This dumps the commit-graph in the object directory, then checks the
+	 * ancestry of the two commits provided using only the graph.
+	 * @param objectDir The objects directory
+	 * @param older The SHA1 of the older commit
+	 * @param newer The SHA1 of the newer commit
+	 * @throws IOException
+	 */
+	public static void test7(File objectDir, String older, String newer) throws
+			IOException, NoSuchAlgorithmException
+	{
+		File graphFile = new File(objectDir, "info/commit-graph");
+		System.out.println("Validate: " + CommitGraph.validate(graphFile));
+
+		CommitGraph graph = CommitGraph.open(objectDir);
+		graph.dump();
+
+		int a = graph.findPosition(Hex.toByteArray(older));
+		int b = graph.findPosition(Hex.toByteArray(newer));
+		System.out.println(older + " ancestor of " + newer + ": " + graph.isAncestor(a, b));
+		System.out.println(newer + " ancestor of " + older + ": " + graph.isAncestor(b, a));
+	}
+
+	/**
+	 * This walks the history backwards from the specified commit, like
+	 * 'git log --oneline', printing each commit and the first line of its
+	 * message. The commit-graph in the object directory, if there is one,
+	 * is used to find the parents.
+	 * @param objectDir The objects directory
+	 * @param head The SHA1 of the commit to start from
+	 * @param limit The maximum number of commits to show
+	 * @throws IOException
+	 */
+	public static void test8(File objectDir, String head, int limit) throws IOException
+	{
+		ObjectDatabase db = new ObjectDatabase(objectDir);
+		RevWalk walk = new RevWalk(db);
+		walk.setLimit(limit);
+		walk.markStart(ObjectId.fromString(head));
+
+		RevWalk.Commit c;
+		while (null != (c = walk.next())) {
+			String message = c.getView().getMessage();
+			int eol = message.indexOf('\n');
+			if (eol != -1) message = message.substring(0, eol);
+			System.out.println(c.getId() + " " + message);
+		}
+		db.close();
+	}
+
 	public static void main(String[] args)
 	{
 		try {
@@ -668,6 +685,32 @@ public class Main
 			test5(indexFile,"bfb1b107bab520e424acf46c3dbfec7e2dd043f1");
 			System.out.println();
 			test6(indexFile,"bfb1b107bab520e424acf46c3dbfec7e2dd043f1");
+
+			/*
+			 *	Walk the second commit using the object database, which finds
+			 * 	the objects in our pack file (resolving deltas as needed)
+			 */
+
+			System.out.println("Commit from packed objects");
+			test1(new File("test/Test2/objects"), "71b71187fe2ac3088cb90096206a12f1601ae981");
+
+			/*
+			 *	The same history, read from the commit-graph without touching
+			 * 	the commit objects.
+			 */
+
+			System.out.println();
+			System.out.println("Commit graph");
+			test7(new File("test/Test2/objects"), "073f88d50901c9aa8a9a75df4f7b05145e6cf546",
+					"71b71187fe2ac3088cb90096206a12f1601ae981");
+
+			/*
+			 *	And walk the history from the second commit
+			 */
+
+			System.out.println();
+			System.out.println("History");
+			test8(new File("test/Test2/objects"), "71b71187fe2ac3088cb90096206a12f1601ae981", 10);
 		}
 		catch (Throwable err)
 		{
@@ -0,0 +1,183 @@
+package com.chaosinmotion.git.test.common;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Parses the author, committer and tagger lines of commit and tag objects
+ * directly from the object bytes:</p>
+ *
+ * <pre>
+ * {name} &lt;{email}&gt; {timestamp} {timezone}
+ * </pre>
+ *
+ * <p>Unlike User, this does not build any Strings. The name and email are
+ * left as byte ranges in the data, and the timestamp and timezone are
+ * parsed into primitives, with the timezone as an offset in minutes (so
+ * '-0130' is -90). A parser may be reused for any number of lines, so a
+ * history walk needs only one.</p>
+ *
+ * <p>To get the name and email as Strings, use getIdentity with an
+ * IdentityCache, which shares one Identity between every line naming the
+ * same person.</p>
+ */
+public class IdentParser
+{
+	private byte[] data;
+	private int nameOffset;
+	private int nameLength;
+	private int emailOffset;
+	private int emailLength;
+	private long timestamp;
+	private int timezone;
+
+	/**
+	 * Parse an ident line.
+	 * @param data The array holding the line
+	 * @param off The offset of the line, after the header name and space
+	 * @param len The length of the line, not including the newline
+	 * @throws IOException If there is no email in angle brackets
+	 */
+	public void parse(byte[] data, int off, int len) throws IOException
+	{
+		int end = off + len;
+
+		/*
+		 *	The email is between the first '<' and the '>' after it. The
+		 * 	name is everything before, without surrounding whitespace.
+		 */
+
+		int lt = off;
+		while ((lt < end) && (data[lt] != '<')) ++lt;
+		int gt = lt;
+		while ((gt < end) && (data[gt] != '>')) ++gt;
+		if (gt >= end) throw new IOException("Invalid ident: no email");
+
+		int ns = off;
+		int ne = lt;
+		while ((ns < ne) && (data[ns] == ' ')) ++ns;
+		while ((ne > ns) && (data[ne - 1] == ' ')) --ne;
+
+		int es = lt + 1;
+		int ee = gt;
+		while ((es < ee) && (data[es] == ' ')) ++es;
+		while ((ee > es) && (data[ee - 1] == ' ')) --ee;
+
+		/*
+		 *	The timestamp and timezone follow the last '>', as the email
+		 * 	itself may be malformed. Like GIT, we treat a missing date as 0.
+		 */
+
+		int p = end;
+		while (data[p - 1] != '>') --p;
+		while ((p < end) && (data[p] == ' ')) ++p;
+
+		long t = 0;
+		int digits = 0;
+		while ((p < end) && (data[p] >= '0') && (data[p] <= '9')) {
+			if (++digits > 18) throw new IOException("Invalid ident: bad timestamp");
+			t = t * 10 + (data[p++] - '0');
+		}
+		while ((p < end) && (data[p] == ' ')) ++p;
+
+		int tz = 0;
+		if ((end - p >= 5) && ((data[p] == '+') || (data[p] == '-'))) {
+			int hhmm = 0;
+			for (int i = 1; i <= 4; ++i) {
+				int d = data[p + i] - '0';
+				if ((d < 0) || (d > 9)) {
+					hhmm = -1;
+					break;
+				}
+				hhmm = hhmm * 10 + d;
+			}
+			if (hhmm != -1) {
+				tz = (hhmm / 100) * 60 + (hhmm % 100);
+				if (data[p] == '-') tz = -tz;
+			}
+		}
+
+		this.data = data;
+		nameOffset = ns;
+		nameLength = ne - ns;
+		emailOffset = es;
+		emailLength = ee - es;
+		timestamp = t;
+		timezone = tz;
+	}
+
+	/**
+	 * The array holding the last line parsed
+	 * @return The data
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	public int getNameOffset()
+	{
+		return nameOffset;
+	}
+
+	public int getNameLength()
+	{
+		return nameLength;
+	}
+
+	public int getEmailOffset()
+	{
+		return emailOffset;
+	}
+
+	public int getEmailLength()
+	{
+		return emailLength;
+	}
+
+	/**
+	 * The timestamp, in seconds since the epoch
+	 * @return The timestamp
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	/**
+	 * The timezone offset from UTC, in minutes
+	 * @return The offset
+	 */
+	public int getTimezoneMinutes()
+	{
+		return timezone;
+	}
+
+	/**
+	 * Decode the name. This allocates; prefer getIdentity.
+	 * @return The name
+	 */
+	public String getName()
+	{
+		return new String(data, nameOffset, nameLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Decode the email. This allocates; prefer getIdentity.
+	 * @return The email
+	 */
+	public String getEmail()
+	{
+		return new String(data, emailOffset, emailLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * The name and email, shared through the cache provided
+	 * @param cache The identity cache
+	 * @return The identity
+	 */
+	public Identity getIdentity(IdentityCache cache)
+	{
+		return cache.get(data, nameOffset, nameLength, emailOffset, emailLength);
+	}
+}
@@ -0,0 +1,59 @@
+package com.chaosinmotion.git.test.common;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The name and email of a person (author, committer, or tagger), without the
+ * timestamp. The same few people appear on most commits in a repository, so
+ * identities are shared through an IdentityCache rather than decoded again
+ * for each commit.
+ */
+public class Identity
+{
+	public final String name;
+	public final String email;
+
+	// The raw UTF-8 bytes, so the cache can match without decoding
+	final byte[] nameBytes;
+	final byte[] emailBytes;
+	final int hash;
+
+	Identity(byte[] data, int nameOff, int nameLen, int emailOff, int emailLen, int hash)
+	{
+		nameBytes = Arrays.copyOfRange(data, nameOff, nameOff + nameLen);
+		emailBytes = Arrays.copyOfRange(data, emailOff, emailOff + emailLen);
+		name = new String(nameBytes, StandardCharsets.UTF_8);
+		email = new String(emailBytes, StandardCharsets.UTF_8);
+		this.hash = hash;
+	}
+
+	/**
+	 * Determine if this identity has the name and email given
+	 */
+	boolean matches(byte[] data, int nameOff, int nameLen, int emailOff, int emailLen)
+	{
+		return Arrays.equals(nameBytes, 0, nameBytes.length, data, nameOff, nameOff + nameLen)
+				&& Arrays.equals(emailBytes, 0, emailBytes.length, data, emailOff, emailOff + emailLen);
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (!(o instanceof Identity)) return false;
+		Identity i = (Identity)o;
+		return Arrays.equals(nameBytes, i.nameBytes) && Arrays.equals(emailBytes, i.emailBytes);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+
+	public String toString()
+	{
+		return String.format("%s <%s>", name, email);
+	}
+}
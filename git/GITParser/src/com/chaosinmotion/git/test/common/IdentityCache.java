@@ -0,0 +1,87 @@
+package com.chaosinmotion.git.test.common;
+
+/**
+ * <p>A bounded cache of identities, keyed by the raw bytes of the name and
+ * email. Looking up an identity which is already cached allocates nothing.</p>
+ *
+ * <p>The cache is a direct-mapped table: each name and email hashes to a
+ * single slot, and a new identity replaces whatever was there. This keeps
+ * the memory used fixed however many people appear in the history, while
+ * the handful of people who make most of the commits stay cached.</p>
+ *
+ * <p>This may be shared across threads. Identities are immutable, so the
+ * worst a race can do is cause an extra miss.</p>
+ */
+public class IdentityCache
+{
+	private static final int DEFAULT_SIZE = 4096;
+
+	private final Identity[] table;
+	private final int mask;
+
+	/**
+	 * Create a cache with room for 4096 identities
+	 */
+	public IdentityCache()
+	{
+		this(DEFAULT_SIZE);
+	}
+
+	/**
+	 * Create a cache
+	 * @param size The number of identities to hold, rounded up to a power
+	 *             of two
+	 */
+	public IdentityCache(int size)
+	{
+		if ((size < 1) || (size > (1 << 30))) throw new IllegalArgumentException("Invalid cache size " + size);
+		int n = Integer.highestOneBit(size);
+		if (n < size) n <<= 1;
+		table = new Identity[n];
+		mask = n - 1;
+	}
+
+	/**
+	 * Get the identity with the name and email given by the byte ranges
+	 * @param data The array holding the name and email, UTF-8 encoded
+	 * @param nameOff The offset of the name
+	 * @param nameLen The length of the name
+	 * @param emailOff The offset of the email
+	 * @param emailLen The length of the email
+	 * @return The identity
+	 */
+	public Identity get(byte[] data, int nameOff, int nameLen, int emailOff, int emailLen)
+	{
+		/*
+		 *	FNV-1a over the name, a separator and the email
+		 */
+
+		int h = 0x811c9dc5;
+		for (int i = 0; i < nameLen; ++i) {
+			h = (h ^ (data[nameOff + i] & 0xFF)) * 0x01000193;
+		}
+		h = (h ^ 0x100) * 0x01000193;
+		for (int i = 0; i < emailLen; ++i) {
+			h = (h ^ (data[emailOff + i] & 0xFF)) * 0x01000193;
+		}
+
+		int slot = (h ^ (h >>> 16)) & mask;
+		Identity id = table[slot];
+		if ((id != null) && (id.hash == h) && id.matches(data, nameOff, nameLen, emailOff, emailLen)) {
+			return id;
+		}
+
+		id = new Identity(data, nameOff, nameLen, emailOff, emailLen, h);
+		table[slot] = id;
+		return id;
+	}
+
+	/**
+	 * The maximum number of identities held
+	 * @return The capacity
+	 */
+	public int getCapacity()
+	{
+		return table.length;
+	}
+}
@@ -0,0 +1,173 @@
+package com.chaosinmotion.git.test.common;
+
+import com.chaosinmotion.git.test.utils.Hex;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * <p>An immutable SHA-1 object ID. The 20 bytes are held as five ints rather
+ * than in an array, so an ObjectId is a single small object, and comparing
+ * or hashing one touches no other memory.</p>
+ *
+ * <p>The SHA-1 is already uniformly distributed, so the hash code is simply
+ * the first four bytes. Ordering is the same as comparing the bytes as
+ * unsigned values, which is the order of pack index files.</p>
+ */
+public final class ObjectId implements Comparable<ObjectId>
+{
+	private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+	final int w0;
+	final int w1;
+	final int w2;
+	final int w3;
+	final int w4;
+
+	ObjectId(int w0, int w1, int w2, int w3, int w4)
+	{
+		this.w0 = w0;
+		this.w1 = w1;
+		this.w2 = w2;
+		this.w3 = w3;
+		this.w4 = w4;
+	}
+
+	/**
+	 * Create an object ID from 20 bytes
+	 * @param sha1 The array holding the SHA-1
+	 * @param off The offset of the SHA-1 in the array
+	 * @return The object ID
+	 */
+	public static ObjectId fromBytes(byte[] sha1, int off)
+	{
+		return new ObjectId(word(sha1, off), word(sha1, off + 4), word(sha1, off + 8),
+				word(sha1, off + 12), word(sha1, off + 16));
+	}
+
+	/**
+	 * Create an object ID from a 20 byte array
+	 * @param sha1 The SHA-1
+	 * @return The object ID
+	 */
+	public static ObjectId fromBytes(byte[] sha1)
+	{
+		if (sha1.length != 20) throw new IllegalArgumentException("SHA-1 must be 20 bytes");
+		return fromBytes(sha1, 0);
+	}
+
+	/**
+	 * Create an object ID from a 40 character hex string
+	 * @param sha1 The SHA-1 in hex
+	 * @return The object ID
+	 * @throws IllegalArgumentException if the string is not 40 hex digits
+	 */
+	public static ObjectId fromString(String sha1)
+	{
+		if (sha1.length() != 40) throw new IllegalArgumentException("Invalid object ID " + sha1);
+
+		int[] w = new int[5];
+		for (int i = 0; i < 40; ++i) {
+			int d = Hex.digit(sha1.charAt(i));
+			if (d == -1) throw new IllegalArgumentException("Invalid object ID " + sha1);
+			w[i >> 3] = (w[i >> 3] << 4) | d;
+		}
+		return new ObjectId(w[0], w[1], w[2], w[3], w[4]);
+	}
+
+	static int word(byte[] b, int off)
+	{
+		return (int)INT.get(b, off);
+	}
+
+	static void putWord(byte[] b, int off, int w)
+	{
+		INT.set(b, off, w);
+	}
+
+	/**
+	 * Copy the SHA-1 into an array
+	 * @param sha1 The destination array
+	 * @param off The offset to write the 20 bytes to
+	 */
+	public void copyTo(byte[] sha1, int off)
+	{
+		putWord(sha1, off, w0);
+		putWord(sha1, off + 4, w1);
+		putWord(sha1, off + 8, w2);
+		putWord(sha1, off + 12, w3);
+		putWord(sha1, off + 16, w4);
+	}
+
+	/**
+	 * The SHA-1 as a new 20 byte array
+	 * @return The SHA-1
+	 */
+	public byte[] toByteArray()
+	{
+		byte[] ret = new byte[20];
+		copyTo(ret, 0);
+		return ret;
+	}
+
+	/**
+	 * Determine if this is the SHA-1 held in the array at the offset given
+	 * @param sha1 The array
+	 * @param off The offset of the SHA-1
+	 * @return True if equal
+	 */
+	public boolean equals(byte[] sha1, int off)
+	{
+		return (w0 == word(sha1, off)) && (w1 == word(sha1, off + 4)) && (w2 == word(sha1, off + 8))
+				&& (w3 == word(sha1, off + 12)) && (w4 == word(sha1, off + 16));
+	}
+
+	/**
+	 * The first byte of the SHA-1, used by the fanout tables of index files
+	 * @return The first byte, 0-255
+	 */
+	public int getFirstByte()
+	{
+		return w0 >>> 24;
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (this == o) return true;
+		if (!(o instanceof ObjectId)) return false;
+		ObjectId id = (ObjectId)o;
+		return (w0 == id.w0) && (w1 == id.w1) && (w2 == id.w2) && (w3 == id.w3) && (w4 == id.w4);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return w0;
+	}
+
+	@Override
+	public int compareTo(ObjectId id)
+	{
+		if (w0 != id.w0) return Integer.compareUnsigned(w0, id.w0);
+		if (w1 != id.w1) return Integer.compareUnsigned(w1, id.w1);
+		if (w2 != id.w2) return Integer.compareUnsigned(w2, id.w2);
+		if (w3 != id.w3) return Integer.compareUnsigned(w3, id.w3);
+		return Integer.compareUnsigned(w4, id.w4);
+	}
+
+	/**
+	 * The SHA-1 as 40 lower case hex digits
+	 * @return The hex string
+	 */
+	public String toString()
+	{
+		char[] c = new char[40];
+		int[] w = { w0, w1, w2, w3, w4 };
+		for (int i = 0; i < 40; ++i) {
+			c[i] = Hex.toDigit(w[i >> 3] >>> (28 - ((i & 7) << 2)));
+		}
+		return new String(c);
+	}
+}
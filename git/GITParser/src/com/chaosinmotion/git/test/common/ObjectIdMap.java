@@ -0,0 +1,100 @@
+package com.chaosinmotion.git.test.common;
+
+import java.util.function.BiConsumer;
+
+/**
+ * A map keyed by object ID. Like ObjectIdSet, the keys are stored inline in
+ * an open addressed table, and may be looked up straight from a byte array
+ * without creating an ObjectId. Null values are not allowed.
+ *
+ * This is not thread safe.
+ * @param <V> The value type
+ */
+public class ObjectIdMap<V> extends ObjectIdTable
+{
+	public ObjectIdMap()
+	{
+		this(0);
+	}
+
+	/**
+	 * Create a map sized to hold the number of keys given without growing
+	 * @param expected The expected number of keys
+	 */
+	public ObjectIdMap(int expected)
+	{
+		super(expected, true);
+	}
+
+	/**
+	 * Get the value for an object ID
+	 * @param id The key
+	 * @return The value, or null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(ObjectId id)
+	{
+		int slot = find(id.w0, id.w1, id.w2, id.w3, id.w4);
+		return (slot >= 0) ? (V)values[slot] : null;
+	}
+
+	/**
+	 * Get the value for the object ID held in an array
+	 * @param sha1 The array holding the SHA-1
+	 * @param off The offset of the SHA-1
+	 * @return The value, or null if absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(byte[] sha1, int off)
+	{
+		int slot = find(ObjectId.word(sha1, off), ObjectId.word(sha1, off + 4), ObjectId.word(sha1, off + 8),
+				ObjectId.word(sha1, off + 12), ObjectId.word(sha1, off + 16));
+		return (slot >= 0) ? (V)values[slot] : null;
+	}
+
+	/**
+	 * Determine if the map holds an object ID
+	 * @param id The key
+	 * @return True if present
+	 */
+	public boolean containsKey(ObjectId id)
+	{
+		return find(id.w0, id.w1, id.w2, id.w3, id.w4) >= 0;
+	}
+
+	/**
+	 * Set the value for an object ID
+	 * @param id The key
+	 * @param value The value
+	 * @return The previous value, or null if the key was absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(ObjectId id, V value)
+	{
+		if (value == null) throw new NullPointerException("Null values are not allowed");
+
+		int slot = find(id.w0, id.w1, id.w2, id.w3, id.w4);
+		if (slot >= 0) {
+			V old = (V)values[slot];
+			values[slot] = value;
+			return old;
+		}
+
+		slot = insert(-(slot + 1), id.w0, id.w1, id.w2, id.w3, id.w4);
+		values[slot] = value;
+		return null;
+	}
+
+	/**
+	 * Call the action for each key and value, in no particular order
+	 * @param action The action
+	 */
+	@SuppressWarnings("unchecked")
+	public void forEach(BiConsumer<ObjectId, V> action)
+	{
+		int capacity = capacity();
+		for (int i = 0; i < capacity; ++i) {
+			if (isUsed(i)) action.accept(keyAt(i), (V)values[i]);
+		}
+	}
+}
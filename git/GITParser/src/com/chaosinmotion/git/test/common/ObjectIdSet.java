@@ -0,0 +1,95 @@
+package com.chaosinmotion.git.test.common;
+
+import java.util.function.Consumer;
+
+/**
+ * A set of object IDs, such as the objects already visited in a walk. The
+ * IDs are stored inline in an open addressed table, at roughly 27 bytes per
+ * entry, against around 100 bytes for a HashSet of hex Strings. IDs may be
+ * added and tested straight from a byte array without creating an ObjectId.
+ *
+ * This is not thread safe.
+ */
+public class ObjectIdSet extends ObjectIdTable
+{
+	public ObjectIdSet()
+	{
+		this(0);
+	}
+
+	/**
+	 * Create a set sized to hold the number of IDs given without growing
+	 * @param expected The expected number of IDs
+	 */
+	public ObjectIdSet(int expected)
+	{
+		super(expected, false);
+	}
+
+	/**
+	 * Add an object ID
+	 * @param id The ID to add
+	 * @return True if the ID was not already in the set
+	 */
+	public boolean add(ObjectId id)
+	{
+		int slot = find(id.w0, id.w1, id.w2, id.w3, id.w4);
+		if (slot >= 0) return false;
+		insert(-(slot + 1), id.w0, id.w1, id.w2, id.w3, id.w4);
+		return true;
+	}
+
+	/**
+	 * Add the object ID held in an array
+	 * @param sha1 The array holding the SHA-1
+	 * @param off The offset of the SHA-1
+	 * @return True if the ID was not already in the set
+	 */
+	public boolean add(byte[] sha1, int off)
+	{
+		int w0 = ObjectId.word(sha1, off);
+		int w1 = ObjectId.word(sha1, off + 4);
+		int w2 = ObjectId.word(sha1, off + 8);
+		int w3 = ObjectId.word(sha1, off + 12);
+		int w4 = ObjectId.word(sha1, off + 16);
+
+		int slot = find(w0, w1, w2, w3, w4);
+		if (slot >= 0) return false;
+		insert(-(slot + 1), w0, w1, w2, w3, w4);
+		return true;
+	}
+
+	/**
+	 * Determine if the set holds an object ID
+	 * @param id The ID
+	 * @return True if present
+	 */
+	public boolean contains(ObjectId id)
+	{
+		return find(id.w0, id.w1, id.w2, id.w3, id.w4) >= 0;
+	}
+
+	/**
+	 * Determine if the set holds the object ID held in an array
+	 * @param sha1 The array holding the SHA-1
+	 * @param off The offset of the SHA-1
+	 * @return True if present
+	 */
+	public boolean contains(byte[] sha1, int off)
+	{
+		return find(ObjectId.word(sha1, off), ObjectId.word(sha1, off + 4), ObjectId.word(sha1, off + 8),
+				ObjectId.word(sha1, off + 12), ObjectId.word(sha1, off + 16)) >= 0;
+	}
+
+	/**
+	 * Call the action for each ID in the set, in no particular order
+	 * @param action The action
+	 */
+	public void forEach(Consumer<ObjectId> action)
+	{
+		int capacity = capacity();
+		for (int i = 0; i < capacity; ++i) {
+			if (isUsed(i)) action.accept(keyAt(i));
+		}
+	}
+}
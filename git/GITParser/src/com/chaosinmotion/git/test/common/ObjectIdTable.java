@@ -0,0 +1,146 @@
+package com.chaosinmotion.git.test.common;
+
+import java.util.Arrays;
+
+/**
+ * The open addressed hash table behind ObjectIdSet and ObjectIdMap. The
+ * keys are stored inline, five ints to a slot, so a table entry costs 20
+ * bytes (plus a reference for maps) rather than a separate ObjectId or
+ * String for every key. Collisions are resolved by linear probing; since
+ * SHA-1 values are uniformly distributed, the first word of the key is a
+ * good enough hash.
+ */
+abstract class ObjectIdTable
+{
+	private static final int MIN_CAPACITY = 16;
+
+	private int[] keys;					// 5 ints per slot
+	private long[] used;				// Bit set of occupied slots
+	Object[] values;					// null for sets
+	private int mask;
+	private int size;
+	private int threshold;
+
+	ObjectIdTable(int expected, boolean hasValues)
+	{
+		int capacity = MIN_CAPACITY;
+		while (capacity * 3 / 4 < expected) capacity <<= 1;
+		allocate(capacity, hasValues);
+	}
+
+	private void allocate(int capacity, boolean hasValues)
+	{
+		keys = new int[capacity * 5];
+		used = new long[(capacity + 63) >>> 6];
+		values = hasValues ? new Object[capacity] : null;
+		mask = capacity - 1;
+		threshold = capacity * 3 / 4;
+	}
+
+	/**
+	 * The number of keys in the table
+	 * @return The size
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * True if the table is empty
+	 * @return True if empty
+	 */
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	/**
+	 * Remove all the keys, keeping the current capacity
+	 */
+	public void clear()
+	{
+		Arrays.fill(used, 0);
+		if (values != null) Arrays.fill(values, null);
+		size = 0;
+	}
+
+	final boolean isUsed(int slot)
+	{
+		return (used[slot >>> 6] & (1L << slot)) != 0;
+	}
+
+	/**
+	 * Find the slot holding the key. If the key is absent this returns
+	 * -(slot + 1), where slot is the empty slot the key would go in.
+	 */
+	final int find(int w0, int w1, int w2, int w3, int w4)
+	{
+		int slot = (w0 ^ (w0 >>> 16)) & mask;
+		while (isUsed(slot)) {
+			int k = slot * 5;
+			if ((keys[k] == w0) && (keys[k + 1] == w1) && (keys[k + 2] == w2)
+					&& (keys[k + 3] == w3) && (keys[k + 4] == w4)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -(slot + 1);
+	}
+
+	/**
+	 * Insert a key known to be absent, at the slot returned by find. This
+	 * returns the slot the key ended up in, which differs if the table had
+	 * to grow.
+	 */
+	final int insert(int slot, int w0, int w1, int w2, int w3, int w4)
+	{
+		if (size >= threshold) {
+			grow();
+			slot = -(find(w0, w1, w2, w3, w4) + 1);
+		}
+
+		int k = slot * 5;
+		keys[k] = w0;
+		keys[k + 1] = w1;
+		keys[k + 2] = w2;
+		keys[k + 3] = w3;
+		keys[k + 4] = w4;
+		used[slot >>> 6] |= 1L << slot;
+		++size;
+		return slot;
+	}
+
+	final ObjectId keyAt(int slot)
+	{
+		int k = slot * 5;
+		return new ObjectId(keys[k], keys[k + 1], keys[k + 2], keys[k + 3], keys[k + 4]);
+	}
+
+	final int capacity()
+	{
+		return mask + 1;
+	}
+
+	private void grow()
+	{
+		int[] oldKeys = keys;
+		long[] oldUsed = used;
+		Object[] oldValues = values;
+		int oldCapacity = mask + 1;
+
+		allocate(oldCapacity * 2, oldValues != null);
+		for (int i = 0; i < oldCapacity; ++i) {
+			if ((oldUsed[i >>> 6] & (1L << i)) == 0) continue;
+
+			int k = i * 5;
+			int w0 = oldKeys[k];
+			int slot = (w0 ^ (w0 >>> 16)) & mask;
+			while (isUsed(slot)) slot = (slot + 1) & mask;
+
+			System.arraycopy(oldKeys, k, keys, slot * 5, 5);
+			used[slot >>> 6] |= 1L << slot;
+			if (oldValues != null) values[slot] = oldValues[i];
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package com.chaosinmotion.git.test.common;
+
+/**
+ * A summary of an object in the object database, which can be found without
+ * reading the contents of the object: its type and size, how it is stored,
+ * and how much space it takes on disk. This is the information reported by
+ * `git cat-file -t` and `git cat-file -s`.
+ */
+public class ObjectInfo
+{
+	/**
+	 * How the object is stored
+	 */
+	public enum Storage
+	{
+		LOOSE,				// In its own file in the objects directory
+		PACKED,				// In a pack file, either whole or as a delta
+	}
+
+	/// The type of the object. For deltas this is the type of the base
+	public final ObjectType type;
+
+	/// The size of the object contents, not including the object header
+	public final long size;
+
+	/// How the object is stored
+	public final Storage storage;
+
+	/// The number of deltas applied to reconstruct the object; 0 if the
+	/// object is stored whole
+	public final int deltaDepth;
+
+	/// The number of bytes the object occupies on disk. For a packed object
+	/// this is the size of its entry in the pack file, and does not include
+	/// the size of its delta bases.
+	public final long diskSize;
+
+	public ObjectInfo(ObjectType type, long size, Storage storage, int deltaDepth, long diskSize)
+	{
+		this.type = type;
+		this.size = size;
+		this.storage = storage;
+		this.deltaDepth = deltaDepth;
+		this.diskSize = diskSize;
+	}
+}
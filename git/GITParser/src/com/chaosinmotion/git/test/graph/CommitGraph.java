@@ -0,0 +1,413 @@
+package com.chaosinmotion.git.test.graph;
+
+import com.chaosinmotion.git.test.common.ValidateResult;
+import com.chaosinmotion.git.test.utils.ChunkTable;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.BitSet;
+
+/**
+ * This reads the commit-graph file, which GIT writes to
+ * '.git/objects/info/commit-graph' to speed up walking the commit history.
+ * The file holds, for every commit in the repository, the tree, the parents,
+ * the commit time and the generation number of the commit, so the history
+ * can be walked without inflating and parsing the commit objects.
+ *
+ * https://git-scm.com/docs/gitformat-commit-graph
+ *
+ * Commits are identified by their position in the file, which is the
+ * position of their SHA-1 in the sorted SHA-1 table. Parents are stored as
+ * positions as well, so ancestry queries run entirely on integers.
+ *
+ * The file is memory mapped and is never modified, so this may be shared
+ * across threads.
+ */
+public class CommitGraph
+{
+	/// Returned for a missing parent, or an object not in the graph
+	public static final int NONE = -1;
+
+	private static final int SIGNATURE = 0x43475048;		// "CGPH"
+
+	private static final int OIDF = ChunkTable.id("OIDF");
+	private static final int OIDL = ChunkTable.id("OIDL");
+	private static final int CDAT = ChunkTable.id("CDAT");
+	private static final int GDA2 = ChunkTable.id("GDA2");
+	private static final int GDO2 = ChunkTable.id("GDO2");
+	private static final int EDGE = ChunkTable.id("EDGE");
+
+	/*
+	 *	Each commit data record is the tree SHA-1, two parent positions, and
+	 * 	8 bytes holding the generation number (30 bits) and commit time
+	 * 	(34 bits).
+	 */
+	private static final int CDAT_SIZE = 36;
+	private static final int PARENT_NONE = 0x70000000;
+	private static final int PARENT_EXTRA = 0x80000000;		// Set if octopus merge
+	private static final int EDGE_LAST = 0x80000000;
+
+	private final MappedFile map;
+	private final int[] fanout;
+	private final int count;
+	private final long oidl;
+	private final long cdat;
+	private final long edge;		// -1 if absent
+	private final long gda2;		// -1 if absent
+	private final long gdo2;		// -1 if absent
+
+	/**
+	 * Open the commit-graph in the specified objects directory
+	 * @param objectDir The '.git/objects' directory
+	 * @return The commit graph, or null if the repository does not have one
+	 * @throws IOException
+	 */
+	public static CommitGraph open(File objectDir) throws IOException
+	{
+		File f = new File(new File(objectDir, "info"), "commit-graph");
+		if (!f.isFile()) return null;
+		return new CommitGraph(f);
+	}
+
+	/**
+	 * Open and memory map the commit-graph file
+	 * @param f The commit-graph file
+	 * @throws IOException
+	 */
+	public CommitGraph(File f) throws IOException
+	{
+		map = new MappedFile(f);
+
+		/*
+		 *	Header: signature, version, hash version, chunk count and the
+		 * 	number of base graphs. Only stand-alone graphs using SHA-1 are
+		 * 	supported.
+		 */
+
+		if (map.getInt(0) != SIGNATURE) {
+			throw new IOException("Invalid commit-graph header");
+		}
+		if (map.get(4) != 1) {
+			throw new IOException("Unsupported commit-graph version " + map.get(4));
+		}
+		if (map.get(5) != 1) {
+			throw new IOException("Unsupported commit-graph hash version " + map.get(5));
+		}
+		if (map.get(7) != 0) {
+			throw new IOException("Split commit-graph files are not supported");
+		}
+
+		ChunkTable chunks = new ChunkTable(map, 8, map.get(6));
+
+		/*
+		 *	Read the fanout table into memory, and locate our chunks
+		 */
+
+		long oidf = chunks.require(OIDF, 256 * 4);
+		fanout = new int[256];
+		for (int i = 0; i < 256; ++i) {
+			fanout[i] = map.getInt(oidf + i * 4);
+			if ((i > 0) && (fanout[i] < fanout[i - 1])) {
+				throw new IOException("Invalid commit-graph fanout");
+			}
+		}
+		count = fanout[255];
+
+		oidl = chunks.require(OIDL, (long)count * 20);
+		cdat = chunks.require(CDAT, (long)count * CDAT_SIZE);
+		edge = chunks.getOffset(EDGE);
+		gda2 = chunks.contains(GDA2) ? chunks.require(GDA2, (long)count * 4) : -1;
+		gdo2 = chunks.getOffset(GDO2);
+	}
+
+	/**
+	 * The number of commits in the graph
+	 * @return The commit count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Find the position of the commit with the specified SHA-1
+	 * @param sha1 The 20 byte SHA-1 of the commit
+	 * @return The position of the commit, or NONE if it is not in the graph
+	 * @throws IOException
+	 */
+	public int findPosition(byte[] sha1) throws IOException
+	{
+		int index = 0xFF & sha1[0];
+		int min = (index == 0) ? 0 : fanout[index - 1];
+		int max = fanout[index];
+
+		while (min < max) {
+			int mid = (min + max) >>> 1;
+			int cmp = map.compare(oidl + (long)mid * 20, sha1, 0, 20);
+			if (cmp == 0) return mid;
+			if (cmp < 0) {
+				max = mid;
+			} else {
+				min = mid + 1;
+			}
+		}
+		return NONE;
+	}
+
+	/**
+	 * Copy the SHA-1 of the commit at the specified position
+	 * @param pos The position of the commit
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getSHA1(int pos, byte[] sha1) throws IOException
+	{
+		map.get(oidl + (long)pos * 20, sha1, 0, 20);
+	}
+
+	/**
+	 * Copy the SHA-1 of the root tree of the commit at the specified position
+	 * @param pos The position of the commit
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getTree(int pos, byte[] sha1) throws IOException
+	{
+		map.get(cdat + (long)pos * CDAT_SIZE, sha1, 0, 20);
+	}
+
+	/**
+	 * The number of parents of the commit at the specified position
+	 * @param pos The position of the commit
+	 * @return The number of parents
+	 * @throws IOException
+	 */
+	public int getParentCount(int pos) throws IOException
+	{
+		long rec = cdat + (long)pos * CDAT_SIZE;
+		int p1 = map.getInt(rec + 20);
+		int p2 = map.getInt(rec + 24);
+
+		if (p1 == PARENT_NONE) return 0;
+		if (p2 == PARENT_NONE) return 1;
+		if ((p2 & PARENT_EXTRA) == 0) return 2;
+
+		/*
+		 *	An octopus merge; the second and later parents are in the extra
+		 * 	edges list.
+		 */
+
+		long e = extraEdge(p2 & ~PARENT_EXTRA);
+		int n = 2;
+		while ((map.getInt(e) & EDGE_LAST) == 0) {
+			e += 4;
+			++n;
+		}
+		return n;
+	}
+
+	/**
+	 * The position of a parent of the commit at the specified position
+	 * @param pos The position of the commit
+	 * @param n The index of the parent, starting with 0 for the first parent
+	 * @return The position of the parent, or NONE if the commit has fewer
+	 * parents
+	 * @throws IOException
+	 */
+	public int getParent(int pos, int n) throws IOException
+	{
+		long rec = cdat + (long)pos * CDAT_SIZE;
+		int p1 = map.getInt(rec + 20);
+		if (p1 == PARENT_NONE) return NONE;
+		if (n == 0) return checkPosition(p1);
+
+		int p2 = map.getInt(rec + 24);
+		if (p2 == PARENT_NONE) return NONE;
+		if ((p2 & PARENT_EXTRA) == 0) return (n == 1) ? checkPosition(p2) : NONE;
+
+		long e = extraEdge(p2 & ~PARENT_EXTRA);
+		for (int i = 1; ; ++i) {
+			int p = map.getInt(e);
+			if (i == n) return checkPosition(p & ~EDGE_LAST);
+			if ((p & EDGE_LAST) != 0) return NONE;
+			e += 4;
+		}
+	}
+
+	/**
+	 * The positions of all the parents of the commit at the specified
+	 * position
+	 * @param pos The position of the commit
+	 * @return The positions of the parents, in order
+	 * @throws IOException
+	 */
+	public int[] getParents(int pos) throws IOException
+	{
+		int[] parents = new int[getParentCount(pos)];
+		for (int i = 0; i < parents.length; ++i) {
+			parents[i] = getParent(pos, i);
+		}
+		return parents;
+	}
+
+	/**
+	 * The generation number (topological level) of the commit. This is one
+	 * more than the largest generation of its parents, so a commit with no
+	 * parents has generation 1. Zero means the generation was not computed.
+	 * @param pos The position of the commit
+	 * @return The generation number
+	 * @throws IOException
+	 */
+	public int getGeneration(int pos) throws IOException
+	{
+		return map.getInt(cdat + (long)pos * CDAT_SIZE + 28) >>> 2;
+	}
+
+	/**
+	 * The commit time of the commit
+	 * @param pos The position of the commit
+	 * @return The commit time in seconds since the epoch
+	 * @throws IOException
+	 */
+	public long getCommitTime(int pos) throws IOException
+	{
+		long rec = cdat + (long)pos * CDAT_SIZE + 28;
+		long high = map.getInt(rec) & 0x03;
+		long low = map.getInt(rec + 4) & 0xFFFFFFFFL;
+		return (high << 32) | low;
+	}
+
+	/**
+	 * Returns true if the graph contains corrected commit dates (generation
+	 * number version 2).
+	 * @return True if corrected commit dates are available
+	 */
+	public boolean hasCorrectedCommitDates()
+	{
+		return gda2 != -1;
+	}
+
+	/**
+	 * The corrected commit date of the commit: the commit time, increased
+	 * as needed to be later than the corrected dates of all its parents. If
+	 * the graph does not contain corrected dates, this returns the commit
+	 * time.
+	 * @param pos The position of the commit
+	 * @return The corrected commit date
+	 * @throws IOException
+	 */
+	public long getCorrectedCommitDate(int pos) throws IOException
+	{
+		long time = getCommitTime(pos);
+		if (gda2 == -1) return time;
+
+		int offset = map.getInt(gda2 + (long)pos * 4);
+		if ((offset & 0x80000000) == 0) return time + offset;
+
+		if (gdo2 == -1) throw new IOException("Missing chunk GDO2");
+		return time + map.getLong(gdo2 + (long)(offset & 0x7FFFFFFF) * 8);
+	}
+
+	/**
+	 * Determine if one commit is an ancestor of another (or the same
+	 * commit). This walks the parents from the descendant, skipping any
+	 * commit whose generation shows it cannot reach the ancestor.
+	 * @param ancestor The position of the possible ancestor
+	 * @param descendant The position of the possible descendant
+	 * @return True if ancestor is reachable from descendant
+	 * @throws IOException
+	 */
+	public boolean isAncestor(int ancestor, int descendant) throws IOException
+	{
+		if (ancestor == descendant) return true;
+
+		/*
+		 *	Every ancestor of a commit has a lower generation, so we do not
+		 * 	need to walk past commits at or below the generation of our
+		 * 	target. A generation of zero means we cannot prune.
+		 */
+
+		int cutoff = getGeneration(ancestor);
+		BitSet visited = new BitSet(count);
+		int[] stack = new int[16];
+		int sp = 0;
+
+		stack[sp++] = descendant;
+		visited.set(descendant);
+
+		while (sp > 0) {
+			int pos = stack[--sp];
+			int n = getParentCount(pos);
+			for (int i = 0; i < n; ++i) {
+				int p = getParent(pos, i);
+				if (p == ancestor) return true;
+				if (visited.get(p)) continue;
+				visited.set(p);
+
+				if ((cutoff != 0) && (getGeneration(p) <= cutoff)) continue;
+
+				if (sp == stack.length) {
+					int[] tmp = new int[sp * 2];
+					System.arraycopy(stack, 0, tmp, 0, sp);
+					stack = tmp;
+				}
+				stack[sp++] = p;
+			}
+		}
+		return false;
+	}
+
+	private long extraEdge(int index) throws IOException
+	{
+		if (edge == -1) throw new IOException("Missing chunk EDGE");
+		return edge + (long)index * 4;
+	}
+
+	private int checkPosition(int pos) throws IOException
+	{
+		if ((pos < 0) || (pos >= count)) {
+			throw new IOException("Invalid commit-graph parent " + pos);
+		}
+		return pos;
+	}
+
+	/**
+	 * Validates the checksum at the end of the commit-graph file.
+	 * @param f The commit-graph file
+	 * @return The validation state
+	 * @throws IOException
+	 */
+	public static ValidateResult validate(File f) throws IOException,
+			NoSuchAlgorithmException
+	{
+		if (!f.exists()) return ValidateResult.NOT_FOUND;
+
+		try (MappedFile map = new MappedFile(f)) {
+			return map.verifyChecksum() ? ValidateResult.VALID : ValidateResult.INVALID;
+		}
+	}
+
+	public void dump() throws IOException
+	{
+		byte[] sha1 = new byte[20];
+
+		System.out.println("Commits: " + count);
+		for (int i = 0; i < count; ++i) {
+			getSHA1(i, sha1);
+			System.out.println(i + ": " + Hex.toString(sha1));
+
+			getTree(i, sha1);
+			System.out.println("    tree " + Hex.toString(sha1));
+
+			for (int p : getParents(i)) {
+				getSHA1(p, sha1);
+				System.out.println("    parent " + p + " " + Hex.toString(sha1));
+			}
+			System.out.println("    generation " + getGeneration(i) + " time " + getCommitTime(i)
+					+ " corrected " + getCorrectedCommitDate(i));
+		}
+	}
+}
@@ -0,0 +1,458 @@
+package com.chaosinmotion.git.test.graph;
+
+import com.chaosinmotion.git.test.common.ObjectId;
+import com.chaosinmotion.git.test.common.ObjectIdMap;
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.objects.CommitView;
+import com.chaosinmotion.git.test.objects.ObjectDatabase;
+import com.chaosinmotion.git.test.objects.ObjectStream;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * <p>Walks the commit history backwards from one or more start commits, in
+ * the manner of 'git log'. Commits are returned one at a time from next(),
+ * newest first, and the walk only reads as far into the history as it has
+ * been asked to go: returning 100 commits reads roughly 100 commits (plus
+ * their parents), however long the history is.</p>
+ *
+ * <p>Commits waiting to be returned are held in a priority queue, ordered
+ * either by commit time (as 'git log' does by default) or by generation
+ * number from the commit-graph. If a commit-graph is available the commit
+ * time, generation and parents of each commit are read from it; only
+ * commits missing from the graph are read from the object database. The
+ * commit contents are read only if asked for.</p>
+ *
+ * <p>Typical use:</p>
+ *
+ * <pre>
+ * RevWalk walk = new RevWalk(db);
+ * walk.markStart(head);
+ * walk.setLimit(100);
+ * RevWalk.Commit c;
+ * while (null != (c = walk.next())) {
+ *     ...
+ * }
+ * </pre>
+ *
+ * <p>A walk is not thread safe, and can only be run once.</p>
+ */
+public class RevWalk
+{
+	/**
+	 * The order in which commits are returned
+	 */
+	public enum Sort
+	{
+		COMMIT_TIME,		// Newest commit time first
+		GENERATION,			// Highest generation first; see setSort
+	}
+
+	/// Commits to carry on for once only uninteresting commits remain
+	private static final int SLOP = 5;
+
+	/// The generation of commits not in the commit-graph
+	private static final int GENERATION_INFINITY = Integer.MAX_VALUE;
+
+	/**
+	 * A commit found by the walk
+	 */
+	public class Commit
+	{
+		private final ObjectId id;
+		private final int graphPos;				// CommitGraph.NONE if not in graph
+		private long commitTime;
+		private int generation;
+		private CommitView view;
+		private ObjectId[] parents;
+
+		private final long seq;					// Order found, to break ties
+		private boolean uninteresting;
+		private boolean queued;
+		private boolean done;					// Removed from the queue
+
+		private Commit(ObjectId id, int graphPos, long seq)
+		{
+			this.id = id;
+			this.graphPos = graphPos;
+			this.seq = seq;
+		}
+
+		/**
+		 * The ID of this commit
+		 * @return The commit ID
+		 */
+		public ObjectId getId()
+		{
+			return id;
+		}
+
+		/**
+		 * The commit time, in seconds since the epoch
+		 * @return The commit time
+		 */
+		public long getCommitTime()
+		{
+			return commitTime;
+		}
+
+		/**
+		 * The generation number from the commit-graph
+		 * @return The generation, or Integer.MAX_VALUE if the commit is not
+		 * in the commit-graph
+		 */
+		public int getGeneration()
+		{
+			return generation;
+		}
+
+		/**
+		 * The number of parents of this commit. With first parent walks
+		 * this is still the full count.
+		 * @return The parent count
+		 * @throws IOException
+		 */
+		public int getParentCount() throws IOException
+		{
+			return getParents().length;
+		}
+
+		/**
+		 * The ID of the specified parent
+		 * @param index The parent, from 0 to getParentCount() - 1
+		 * @return The parent ID
+		 * @throws IOException
+		 */
+		public ObjectId getParent(int index) throws IOException
+		{
+			return getParents()[index];
+		}
+
+		/**
+		 * The contents of this commit. If the commit was found through the
+		 * commit-graph, this reads the commit object the first time it is
+		 * called.
+		 * @return The commit view
+		 * @throws IOException
+		 */
+		public CommitView getView() throws IOException
+		{
+			if (view == null) view = readCommit(id);
+			return view;
+		}
+
+		private ObjectId[] getParents() throws IOException
+		{
+			if (parents == null) {
+				if (graphPos != CommitGraph.NONE) {
+					int[] p = graph.getParents(graphPos);
+					parents = new ObjectId[p.length];
+					byte[] sha1 = new byte[20];
+					for (int i = 0; i < p.length; ++i) {
+						graph.getSHA1(p[i], sha1);
+						parents[i] = ObjectId.fromBytes(sha1, 0);
+					}
+				} else {
+					CommitView v = getView();
+					parents = new ObjectId[v.getParentCount()];
+					byte[] sha1 = new byte[20];
+					for (int i = 0; i < parents.length; ++i) {
+						v.getParent(i, sha1, 0);
+						parents[i] = ObjectId.fromBytes(sha1, 0);
+					}
+				}
+			}
+			return parents;
+		}
+
+		public String toString()
+		{
+			return id.toString();
+		}
+	}
+
+	private final ObjectDatabase db;
+	private final CommitGraph graph;			// null if there is none
+
+	private final ObjectIdMap<Commit> commits = new ObjectIdMap<>();
+	private PriorityQueue<Commit> queue;
+	private long seq;
+	private int interesting;					// Interesting commits in the queue
+	private boolean hasUninteresting;
+	private boolean hasUngraphed;				// Found commits not in the graph
+
+	// Set if we had to walk the whole range first
+	private ArrayList<Commit> limited;
+	private int limitedPos;
+
+	private Sort sort = Sort.COMMIT_TIME;
+	private boolean firstParent;
+	private int limit = Integer.MAX_VALUE;
+	private int count;
+
+	/**
+	 * Create a walk over the object database, using the commit-graph in
+	 * the object directory if there is one.
+	 * @param db The object database
+	 * @throws IOException
+	 */
+	public RevWalk(ObjectDatabase db) throws IOException
+	{
+		this(db, CommitGraph.open(db.getObjectDirectory()));
+	}
+
+	/**
+	 * Create a walk over the object database
+	 * @param db The object database
+	 * @param graph The commit-graph, or null to read every commit from the
+	 *              object database
+	 */
+	public RevWalk(ObjectDatabase db, CommitGraph graph)
+	{
+		this.db = db;
+		this.graph = graph;
+	}
+
+	/**
+	 * Set the order commits are returned in. This must be called before
+	 * the first commit is marked. Sorting by generation without a
+	 * commit-graph falls back to commit time.
+	 *
+	 * Sorting by generation never returns a parent before its child if
+	 * both are in the commit-graph. Commits not in the graph (those made
+	 * since it was written) come before those in it, but are ordered among
+	 * themselves by commit time, so a commit with a timestamp earlier than
+	 * its parent may be returned after it.
+	 * @param sort The sort order
+	 */
+	public void setSort(Sort sort)
+	{
+		if (queue != null) throw new IllegalStateException("Walk already started");
+		this.sort = sort;
+	}
+
+	/**
+	 * Only follow the first parent of merge commits, as with
+	 * 'git log --first-parent'
+	 * @param firstParent True to only follow first parents
+	 */
+	public void setFirstParent(boolean firstParent)
+	{
+		this.firstParent = firstParent;
+	}
+
+	/**
+	 * Set the maximum number of commits to return, as with 'git log -n'
+	 * @param limit The limit
+	 */
+	public void setLimit(int limit)
+	{
+		this.limit = limit;
+	}
+
+	/**
+	 * Start the walk from the specified commit
+	 * @param id The commit ID
+	 * @throws IOException If the commit cannot be found
+	 */
+	public void markStart(ObjectId id) throws IOException
+	{
+		enqueue(find(id));
+	}
+
+	/**
+	 * Stop the walk at the specified commit: neither it nor any commit
+	 * reachable from it is returned, as with 'git log until..start'.
+	 *
+	 * When sorting by generation and every commit marked is in the
+	 * commit-graph, commits are still returned as they are found.
+	 * Otherwise the walk must first run through the whole range to find
+	 * which commits are excluded, and as with GIT, a commit with a
+	 * timestamp much earlier than its parent may let an excluded commit
+	 * through.
+	 * @param id The commit ID
+	 * @throws IOException If the commit cannot be found
+	 */
+	public void markUntil(ObjectId id) throws IOException
+	{
+		Commit c = find(id);
+		markUninteresting(c);
+		enqueue(c);
+		hasUninteresting = true;
+	}
+
+	/**
+	 * Return the next commit in the walk
+	 * @return The next commit, or null when the walk is done
+	 * @throws IOException
+	 */
+	public Commit next() throws IOException
+	{
+		if (queue == null) return null;
+
+		/*
+		 *	If commits are excluded and the queue order does not guarantee
+		 * 	children come before parents, we can't tell if a commit is
+		 * 	excluded until we have walked the range. So, like GIT, walk it
+		 * 	first and return commits from the list. Generation order only
+		 * 	guarantees this within the commit-graph; since the graph holds
+		 * 	every ancestor of the commits in it, we only meet commits
+		 * 	outside it if one of those marked is outside it.
+		 */
+
+		if ((limited == null) && hasUninteresting
+				&& ((sort != Sort.GENERATION) || (graph == null) || hasUngraphed)) {
+			limitList();
+		}
+
+		if (limited != null) {
+			while ((count < limit) && (limitedPos < limited.size())) {
+				Commit c = limited.get(limitedPos++);
+				if (!c.uninteresting) {
+					++count;
+					return c;
+				}
+			}
+			return null;
+		}
+
+		while ((count < limit) && (interesting > 0)) {
+			Commit c = pop();
+			if (!c.uninteresting) {
+				++count;
+				return c;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 *	Walking the queue
+	 */
+
+	/**
+	 * Remove the next commit from the queue and queue its parents.
+	 * Parents of an uninteresting commit are uninteresting too; as with
+	 * GIT, we follow every parent of those even in a first parent walk.
+	 */
+	private Commit pop() throws IOException
+	{
+		Commit c = queue.poll();
+		c.queued = false;
+		c.done = true;
+		if (!c.uninteresting) --interesting;
+
+		ObjectId[] parents = c.getParents();
+		int n = (firstParent && !c.uninteresting && (parents.length > 1)) ? 1 : parents.length;
+		for (int i = 0; i < n; ++i) {
+			Commit p = find(parents[i]);
+			if (c.uninteresting) markUninteresting(p);
+			enqueue(p);
+		}
+		return c;
+	}
+
+	/**
+	 * Walk until only uninteresting commits remain in the queue, and they
+	 * are all older than the commits gathered, collecting the interesting
+	 * commits in the order they come out. Since commit times may be out of
+	 * order, we carry on for a few more commits after that, as GIT does.
+	 */
+	private void limitList() throws IOException
+	{
+		limited = new ArrayList<>();
+		long date = Long.MAX_VALUE;			// Time of the last commit gathered
+		int slop = SLOP;
+		while (!queue.isEmpty()) {
+			Commit c = pop();
+			if (!c.uninteresting) {
+				limited.add(c);
+				date = c.commitTime;
+				slop = SLOP;
+			} else if ((interesting > 0) || (!queue.isEmpty() && (queue.peek().commitTime >= date))) {
+				slop = SLOP;
+			} else if (--slop == 0) {
+				break;
+			}
+		}
+	}
+
+	/*
+	 *	Finding and queueing commits
+	 */
+
+	private Commit find(ObjectId id) throws IOException
+	{
+		Commit c = commits.get(id);
+		if (c != null) return c;
+
+		/*
+		 *	Prefer the commit-graph, which doesn't require reading the
+		 * 	commit object.
+		 */
+
+		int pos = (graph == null) ? CommitGraph.NONE : graph.findPosition(id.toByteArray());
+		c = new Commit(id, pos, seq++);
+		if (pos != CommitGraph.NONE) {
+			c.commitTime = graph.getCommitTime(pos);
+			c.generation = graph.getGeneration(pos);
+		} else {
+			c.view = readCommit(id);
+			c.commitTime = c.view.getCommitTime();
+			c.generation = GENERATION_INFINITY;
+			hasUngraphed = true;
+		}
+
+		commits.put(id, c);
+		return c;
+	}
+
+	private CommitView readCommit(ObjectId id) throws IOException
+	{
+		try (ObjectStream s = db.open(id)) {
+			if (s == null) throw new IOException("Missing commit " + id);
+			if (s.getType() != ObjectType.COMMIT) throw new IOException("Not a commit: " + id);
+			return new CommitView(s.readAllBytes());
+		}
+	}
+
+	private void enqueue(Commit c)
+	{
+		if (queue == null) {
+			Comparator<Commit> cmp = Comparator.comparingLong((Commit x) -> -x.commitTime);
+			if ((sort == Sort.GENERATION) && (graph != null)) {
+				cmp = Comparator.comparingInt((Commit x) -> -x.generation).thenComparing(cmp);
+			}
+			queue = new PriorityQueue<>(cmp.thenComparingLong(x -> x.seq));
+		}
+
+		if (c.queued || c.done) return;
+		c.queued = true;
+		queue.add(c);
+		if (!c.uninteresting) ++interesting;
+	}
+
+	/**
+	 * Mark a commit uninteresting. If we have already been past it, its
+	 * parents are marked as well.
+	 */
+	private void markUninteresting(Commit c) throws IOException
+	{
+		ArrayDeque<Commit> stack = new ArrayDeque<>();
+		stack.push(c);
+		while (!stack.isEmpty()) {
+			Commit x = stack.pop();
+			if (x.uninteresting) continue;
+			x.uninteresting = true;
+			if (x.queued) --interesting;
+
+			if (x.done) {
+				for (ObjectId p : x.getParents()) stack.push(find(p));
+			}
+		}
+	}
+}
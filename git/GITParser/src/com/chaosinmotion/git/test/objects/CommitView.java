@@ -0,0 +1,363 @@
+package com.chaosinmotion.git.test.objects;
+
+import com.chaosinmotion.git.test.common.IdentParser;
+import com.chaosinmotion.git.test.common.User;
+import com.chaosinmotion.git.test.utils.Hex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>A lazy view over the contents of a commit object (the data after the
+ * object header) held in memory. This reads the same format as
+ * CommitReader:</p>
+ *
+ * <pre>
+ * 	tree {tree_sha}
+ * 	parent {parent_sha}
+ * 	author {name} &lt;{email}&gt; {timestamp} {timezone}
+ * 	committer {name} &lt;{email}&gt; {timestamp} {timezone}
+ *  \n
+ *  {commit message}
+ * </pre>
+ *
+ * <p>but rather than decoding everything up front, the constructor only
+ * decodes the tree and parent lines, which GIT always writes first, into a
+ * single binary array. Every other field is found by scanning the header
+ * bytes when it is asked for, and only then decoded into a String. A
+ * history walk which only needs the parents and commit time never decodes
+ * the author or the message.</p>
+ *
+ * <p>Object IDs are returned in binary form.</p>
+ */
+public class CommitView
+{
+	private static final byte[] TREE = "tree ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] PARENT = "parent ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AUTHOR = "author ".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] COMMITTER = "committer ".getBytes(StandardCharsets.US_ASCII);
+
+	private final byte[] data;
+	private final int start;
+	private final int end;
+
+	private final byte[] ids;			// Tree, then parent SHA-1s, 20 bytes each
+	private final int headerPos;		// First header after the parents
+
+	private int messagePos = -1;		// Start of the message, found lazily
+	private long commitTime = -1;
+
+	/**
+	 * Create a view over the commit data
+	 * @param data The contents of the commit object
+	 * @throws IOException If the commit does not start with a tree
+	 */
+	public CommitView(byte[] data) throws IOException
+	{
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * Create a view over part of an array holding the commit data
+	 * @param data The array
+	 * @param off The offset of the commit contents
+	 * @param len The length of the commit contents
+	 * @throws IOException If the commit does not start with a tree
+	 */
+	public CommitView(byte[] data, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || (off + len > data.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.data = data;
+		start = off;
+		end = off + len;
+
+		/*
+		 *	The tree is always the first line, followed by any parents
+		 */
+
+		if (!isIdLine(start, TREE)) throw new IOException("Invalid commit: no tree");
+		int pos = start + TREE.length + 41;
+
+		int count = 0;
+		while (isIdLine(pos + count * (PARENT.length + 41), PARENT)) ++count;
+		headerPos = pos + count * (PARENT.length + 41);
+
+		/*
+		 *	Decode the IDs once, so reading them is just a copy
+		 */
+
+		ids = new byte[20 * (1 + count)];
+		Hex.decode(data, start + TREE.length, 40, ids, 0);
+		for (int i = 0; i < count; ++i) {
+			Hex.decode(data, pos + PARENT.length, 40, ids, 20 * (i + 1));
+			pos += PARENT.length + 41;
+		}
+	}
+
+	/**
+	 * The array holding the commit data
+	 * @return The commit data
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * The SHA-1 of the tree of this commit
+	 * @return The 20 byte SHA-1
+	 */
+	public byte[] getTree()
+	{
+		byte[] sha1 = new byte[20];
+		getTree(sha1, 0);
+		return sha1;
+	}
+
+	/**
+	 * Copy the SHA-1 of the tree of this commit
+	 * @param sha1 The destination array
+	 * @param off The offset to write the 20 bytes to
+	 */
+	public void getTree(byte[] sha1, int off)
+	{
+		System.arraycopy(ids, 0, sha1, off, 20);
+	}
+
+	/**
+	 * The number of parents. This is 0 for the initial commit, and more
+	 * than one for a merge.
+	 * @return The parent count
+	 */
+	public int getParentCount()
+	{
+		return ids.length / 20 - 1;
+	}
+
+	/**
+	 * The SHA-1 of the specified parent
+	 * @param index The parent, from 0 to getParentCount() - 1
+	 * @return The 20 byte SHA-1
+	 */
+	public byte[] getParent(int index)
+	{
+		byte[] sha1 = new byte[20];
+		getParent(index, sha1, 0);
+		return sha1;
+	}
+
+	/**
+	 * Copy the SHA-1 of the specified parent
+	 * @param index The parent, from 0 to getParentCount() - 1
+	 * @param sha1 The destination array
+	 * @param off The offset to write the 20 bytes to
+	 */
+	public void getParent(int index, byte[] sha1, int off)
+	{
+		if ((index < 0) || (index >= getParentCount())) {
+			throw new IndexOutOfBoundsException("Parent " + index);
+		}
+		System.arraycopy(ids, 20 * (index + 1), sha1, off, 20);
+	}
+
+	/**
+	 * The commit time: the timestamp on the committer line, in seconds
+	 * since the epoch.
+	 * @return The commit time
+	 * @throws IOException If there is no valid committer line
+	 */
+	public long getCommitTime() throws IOException
+	{
+		if (commitTime == -1) {
+			int pos = findHeader(COMMITTER);
+			if (pos == -1) throw new IOException("Invalid commit: no committer");
+
+			/*
+			 *	The timestamp follows the '>' closing the email. The name
+			 * 	may contain anything, so we scan back from the end of line.
+			 */
+
+			int eol = lineEnd(pos);
+			int p = eol;
+			while ((p > pos) && (data[p - 1] != '>')) --p;
+			if (p == pos) throw new IOException("Invalid commit: bad committer");
+			while ((p < eol) && (data[p] == ' ')) ++p;
+
+			long t = 0;
+			int digits = 0;
+			while ((p < eol) && (data[p] >= '0') && (data[p] <= '9')) {
+				if (++digits > 18) throw new IOException("Invalid commit: bad commit time");
+				t = t * 10 + (data[p++] - '0');
+			}
+			if (digits == 0) throw new IOException("Invalid commit: bad commit time");
+			commitTime = t;
+		}
+		return commitTime;
+	}
+
+	/**
+	 * The author of this commit. This is decoded each time it is called.
+	 * @return The author, or null if there is no author line
+	 */
+	public User getAuthor()
+	{
+		String s = getHeader(AUTHOR);
+		return (s == null) ? null : new User(s);
+	}
+
+	/**
+	 * The committer of this commit. This is decoded each time it is called.
+	 * @return The committer, or null if there is no committer line
+	 */
+	public User getCommitter()
+	{
+		String s = getHeader(COMMITTER);
+		return (s == null) ? null : new User(s);
+	}
+
+	/**
+	 * Parse the author line into the parser provided, without allocating.
+	 * @param ident The parser to fill in
+	 * @return False if there is no author line
+	 * @throws IOException If the author line is malformed
+	 */
+	public boolean parseAuthor(IdentParser ident) throws IOException
+	{
+		return parseIdent(AUTHOR, ident);
+	}
+
+	/**
+	 * Parse the committer line into the parser provided, without
+	 * allocating.
+	 * @param ident The parser to fill in
+	 * @return False if there is no committer line
+	 * @throws IOException If the committer line is malformed
+	 */
+	public boolean parseCommitter(IdentParser ident) throws IOException
+	{
+		return parseIdent(COMMITTER, ident);
+	}
+
+	/**
+	 * The value of the first header with the specified name. Continuation
+	 * lines are joined with a newline, as with ReadHeaders.
+	 * @param name The header name, such as 'encoding' or 'gpgsig'
+	 * @return The value, or null if there is no such header
+	 */
+	public String getHeader(String name)
+	{
+		byte[] b = (name + " ").getBytes(StandardCharsets.UTF_8);
+		return getHeader(b);
+	}
+
+	/**
+	 * The commit message: everything after the blank line ending the
+	 * headers.
+	 * @return The message
+	 */
+	public String getMessage()
+	{
+		int pos = getMessageOffset();
+		return new String(data, pos, end - pos, StandardCharsets.UTF_8);	// always assume UTF-8
+	}
+
+	/**
+	 * The offset of the commit message in getData()
+	 * @return The offset; equal to the end of the data if there is no
+	 * message
+	 */
+	public int getMessageOffset()
+	{
+		if (messagePos == -1) {
+			int pos = headerPos;
+			while ((pos < end) && (data[pos] != '\n')) {
+				pos = lineEnd(pos) + 1;
+			}
+			messagePos = Math.min(pos + 1, end);
+		}
+		return messagePos;
+	}
+
+	/*
+	 *	Internal scanning. Headers are searched starting after the parents,
+	 * 	stopping at the blank line which ends the header block.
+	 */
+
+	private int lineEnd(int pos)
+	{
+		while ((pos < end) && (data[pos] != '\n')) ++pos;
+		return pos;
+	}
+
+	private boolean startsWith(int pos, byte[] prefix)
+	{
+		if (end - pos < prefix.length) return false;
+		for (int i = 0; i < prefix.length; ++i) {
+			if (data[pos + i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	private boolean isIdLine(int pos, byte[] prefix)
+	{
+		if (!startsWith(pos, prefix)) return false;
+		int p = pos + prefix.length;
+		if (end - p < 41) return false;
+		for (int i = 0; i < 40; ++i) {
+			if (Hex.digit(data[p + i]) == -1) return false;
+		}
+		return data[p + 40] == '\n';
+	}
+
+	/**
+	 * Find the value of the header with the given name (including the
+	 * trailing space)
+	 */
+	private int findHeader(byte[] name)
+	{
+		int pos = headerPos;
+		while ((pos < end) && (data[pos] != '\n')) {
+			if (startsWith(pos, name)) return pos + name.length;
+			pos = lineEnd(pos) + 1;
+		}
+		return -1;
+	}
+
+	private boolean parseIdent(byte[] name, IdentParser ident) throws IOException
+	{
+		int pos = findHeader(name);
+		if (pos == -1) return false;
+		ident.parse(data, pos, lineEnd(pos) - pos);
+		return true;
+	}
+
+	private String getHeader(byte[] name)
+	{
+		int pos = findHeader(name);
+		if (pos == -1) return null;
+
+		int eol = lineEnd(pos);
+		String value = new String(data, pos, eol - pos, StandardCharsets.UTF_8);
+		if ((eol + 1 >= end) || (data[eol + 1] != ' ')) return value;
+
+		/*
+		 *	Continuation lines start with a space
+		 */
+
+		StringBuilder builder = new StringBuilder(value);
+		while ((eol + 1 < end) && (data[eol + 1] == ' ')) {
+			pos = eol + 2;
+			eol = lineEnd(pos);
+			builder.append('\n');
+			builder.append(new String(data, pos, eol - pos, StandardCharsets.UTF_8));
+		}
+		return builder.toString();
+	}
+
+	public String toString()
+	{
+		return "tree " + Hex.toString(getTree()) + ", " + getParentCount() + " parents";
+	}
+}
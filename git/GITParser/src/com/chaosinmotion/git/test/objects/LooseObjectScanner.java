@@ -0,0 +1,358 @@
+package com.chaosinmotion.git.test.objects;
+
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.InflaterPool;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>This scans every loose object in a GIT object directory, inflating
+ * each object and verifying that the SHA-1 of its contents matches its
+ * file name, and returns a summary of the object types and sizes found.</p>
+ *
+ * <p>Each of the 256 fan-out directories ('objects/00' through
+ * 'objects/ff') is scanned as a separate task on a ForkJoin pool. Each
+ * worker thread holds its own file buffers and digest, which are reused for
+ * every object it scans, and object files are streamed through the inflater
+ * in fixed size chunks, so the scan allocates very little per object
+ * however large the objects are.</p>
+ */
+public class LooseObjectScanner
+{
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * The result of a scan
+	 */
+	public static class Summary
+	{
+		private final long[] counts = new long[ObjectType.values().length];
+		private final long[] sizes = new long[ObjectType.values().length];
+		private long diskSize;
+		private final List<String> corrupt = new ArrayList<>();
+		private long elapsed;
+
+		/**
+		 * The number of objects of the specified type
+		 * @param type The object type
+		 * @return The number of valid objects of that type
+		 */
+		public long getCount(ObjectType type)
+		{
+			return counts[type.ordinal()];
+		}
+
+		/**
+		 * The total inflated size of the objects of the specified type,
+		 * not including the object headers
+		 * @param type The object type
+		 * @return The total size in bytes
+		 */
+		public long getSize(ObjectType type)
+		{
+			return sizes[type.ordinal()];
+		}
+
+		/**
+		 * The total number of valid objects found
+		 * @return The object count
+		 */
+		public long getTotalCount()
+		{
+			long total = 0;
+			for (long c : counts) total += c;
+			return total;
+		}
+
+		/**
+		 * The total size of the object files on disk
+		 * @return The compressed size in bytes
+		 */
+		public long getDiskSize()
+		{
+			return diskSize;
+		}
+
+		/**
+		 * The SHA-1 of every object file which could not be read, or whose
+		 * contents do not match its name, sorted.
+		 * @return The list of corrupt object IDs
+		 */
+		public List<String> getCorrupt()
+		{
+			return corrupt;
+		}
+
+		/**
+		 * The time taken by the scan
+		 * @return The elapsed time in nanoseconds
+		 */
+		public long getElapsed()
+		{
+			return elapsed;
+		}
+
+		private void add(Summary s)
+		{
+			for (int i = 0; i < counts.length; ++i) {
+				counts[i] += s.counts[i];
+				sizes[i] += s.sizes[i];
+			}
+			diskSize += s.diskSize;
+			corrupt.addAll(s.corrupt);
+		}
+
+		public void dump()
+		{
+			for (ObjectType t : ObjectType.values()) {
+				if (counts[t.ordinal()] == 0) continue;
+				System.out.println(t + ": " + counts[t.ordinal()] + " objects, " + sizes[t.ordinal()] + " bytes");
+			}
+			System.out.println("On disk: " + diskSize + " bytes");
+			System.out.println("Corrupt: " + corrupt.size());
+			for (String sha : corrupt) {
+				System.out.println("    " + sha);
+			}
+		}
+	}
+
+	/**
+	 * The buffers and digest used to scan objects, one set per thread
+	 */
+	private static class Scratch
+	{
+		final byte[] in = new byte[BUFFER_SIZE];
+		final byte[] out = new byte[BUFFER_SIZE];
+		final MessageDigest md;
+
+		Scratch()
+		{
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			}
+			catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException(ex);
+			}
+		}
+	}
+
+	private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+	/**
+	 * Scans a single fan-out directory, using the scratch buffers of the
+	 * thread it runs on.
+	 */
+	private static class DirectoryScan
+	{
+		private final Summary summary = new Summary();
+		private Scratch scratch;
+
+		Summary scan(Path dir) throws IOException
+		{
+			String prefix = dir.getFileName().toString();
+			scratch = SCRATCH.get();
+
+			try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					if ((name.length() != 38) || !isHex(name)) continue;
+
+					String sha = (prefix + name).toLowerCase(Locale.ROOT);
+					try {
+						scanObject(file, sha);
+					}
+					catch (IOException | DataFormatException ex) {
+						summary.corrupt.add(sha);
+					}
+				}
+			}
+			return summary;
+		}
+
+		/**
+		 * Inflate the object, parsing the header and hashing the contents
+		 * as we go.
+		 */
+		private void scanObject(Path file, String sha) throws IOException,
+				DataFormatException
+		{
+			byte[] in = scratch.in;
+			byte[] out = scratch.out;
+			MessageDigest md = scratch.md;
+
+			/*
+			 *	Inflate, reading the file a buffer at a time as the inflater
+			 * 	asks for it. The header is (type)(space)(length)(null); we
+			 * 	parse it as it passes, and hash everything.
+			 */
+
+			Inflater inflater = InflaterPool.acquire();
+			try (InputStream is = Files.newInputStream(file)) {
+				md.reset();
+
+				StringBuilder header = new StringBuilder();
+				boolean inHeader = true;
+				long size = 0;
+
+				while (!inflater.finished()) {
+					if (inflater.needsInput()) {
+						int n = is.read(in);
+						if (n <= 0) throw new DataFormatException("Truncated object");
+						summary.diskSize += n;
+						inflater.setInput(in, 0, n);
+						continue;
+					}
+
+					int len = inflater.inflate(out);
+					if (len == 0) {
+						if (inflater.needsDictionary()) {
+							// GIT never writes a preset dictionary
+							throw new DataFormatException("Unsupported object compression");
+						}
+						continue;
+					}
+					md.update(out, 0, len);
+
+					int i = 0;
+					while (inHeader && (i < len)) {
+						byte b = out[i++];
+						if (b == 0) {
+							inHeader = false;
+						} else if (header.length() > 32) {
+							throw new DataFormatException("Invalid object header");
+						} else {
+							header.append((char)b);
+						}
+					}
+					size += len - i;
+				}
+
+				if (inHeader) throw new DataFormatException("Invalid object header");
+
+				int space = header.indexOf(" ");
+				if (space == -1) throw new DataFormatException("Invalid object header");
+				ObjectType type = ObjectType.fromString(header.substring(0, space));
+				if (type == ObjectType.UNKNOWN) throw new DataFormatException("Invalid object type");
+
+				long headerSize;
+				try {
+					headerSize = Long.parseLong(header.substring(space + 1));
+				}
+				catch (NumberFormatException ex) {
+					throw new DataFormatException("Invalid object length");
+				}
+				if (headerSize != size) throw new DataFormatException("Object length mismatch");
+
+				if (!Hex.equals(Hex.toByteArray(sha), md.digest())) throw new DataFormatException("SHA-1 mismatch");
+
+				summary.counts[type.ordinal()]++;
+				summary.sizes[type.ordinal()] += size;
+
+				// Count anything after the compressed data as well
+				int n;
+				while ((n = is.read(in)) > 0) summary.diskSize += n;
+			}
+			finally {
+				InflaterPool.release(inflater);
+			}
+		}
+	}
+
+	private final Path objectDir;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	/**
+	 * Create a scanner for the specified object directory
+	 * @param objectDir The '.git/objects' directory
+	 */
+	public LooseObjectScanner(Path objectDir)
+	{
+		this.objectDir = objectDir;
+	}
+
+	/**
+	 * Set the pool the scan is run on. Defaults to the common pool.
+	 * @param pool The pool to run on
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Scan every loose object. Corrupt objects are reported in the summary
+	 * rather than thrown.
+	 * @return The summary of the objects found
+	 * @throws IOException
+	 */
+	public Summary scan() throws IOException
+	{
+		long start = System.nanoTime();
+
+		/*
+		 *	Start a task for each fan-out directory
+		 */
+
+		List<ForkJoinTask<Summary>> tasks = new ArrayList<>();
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(objectDir)) {
+			for (Path dir : dirs) {
+				String name = dir.getFileName().toString();
+				if ((name.length() != 2) || !isHex(name) || !Files.isDirectory(dir)) continue;
+
+				tasks.add(pool.submit(() -> new DirectoryScan().scan(dir)));
+			}
+		}
+
+		/*
+		 *	And gather the results
+		 */
+
+		Summary summary = new Summary();
+		for (ForkJoinTask<Summary> task : tasks) {
+			try {
+				summary.add(task.get());
+			}
+			catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted", ex);
+			}
+			catch (ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if (cause instanceof IOException) throw (IOException)cause;
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				throw new IOException(cause);
+			}
+		}
+
+		Collections.sort(summary.corrupt);
+		summary.elapsed = System.nanoTime() - start;
+		return summary;
+	}
+
+	private static boolean isHex(String str)
+	{
+		for (int i = 0; i < str.length(); ++i) {
+			char c = str.charAt(i);
+			if (!(((c >= '0') && (c <= '9')) || ((c >= 'a') && (c <= 'f')) || ((c >= 'A') && (c <= 'F')))) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,626 @@
+package com.chaosinmotion.git.test.objects;
+
+import com.chaosinmotion.git.test.common.ObjectId;
+import com.chaosinmotion.git.test.common.ObjectInfo;
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.packfiles.IndexReader;
+import com.chaosinmotion.git.test.packfiles.MultiPackIndex;
+import com.chaosinmotion.git.test.packfiles.ObjectResolver;
+import com.chaosinmotion.git.test.packfiles.PackReader;
+import com.chaosinmotion.git.test.packfiles.ResolvedObject;
+import com.chaosinmotion.git.test.utils.Hex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+
+/**
+ * <p>This provides access to all of the objects in a GIT object directory
+ * (that is, the '.git/objects' directory), regardless of whether they are
+ * stored as loose object files or inside one of the pack files in the
+ * 'pack' subdirectory.</p>
+ *
+ * <p>The database opens the index and pack file of every pack once, when
+ * it is constructed, and keeps them open (and memory mapped) until closed.
+ * Lookups search the packs first, then the loose objects. The packs are
+ * kept in most recently used order, so the pack that last found an object
+ * is the first one searched next time; objects tend to be requested in
+ * clusters that live in the same pack.</p>
+ *
+ * <p>If the pack directory has a multi-pack-index, objects in the packs
+ * it covers are found with a single lookup, and those packs are only
+ * opened when an object is first read from them. Packs not covered by the
+ * multi-pack-index (such as packs fetched since it was written) are
+ * searched as before. If a pack the multi-pack-index lists cannot be
+ * opened (say it was removed by a repack since the index was written), we
+ * treat the multi-pack-index as stale, as GIT does: that pack is skipped,
+ * and the remaining packs it covers are searched individually.</p>
+ *
+ * <p>This is safe to use from multiple threads.</p>
+ */
+public class ObjectDatabase
+{
+	/**
+	 * An open pack file and its index
+	 */
+	private static class Pack
+	{
+		final File file;
+		final IndexReader index;
+		final PackReader pack;
+		final ObjectResolver resolver;
+
+		Pack(File file, IndexReader index, PackReader pack)
+		{
+			this.file = file;
+			this.index = index;
+			this.pack = pack;
+			this.resolver = new ObjectResolver(index, pack);
+		}
+	}
+
+	/**
+	 * An object stream over an object resolved from a pack file
+	 */
+	private static class PackedObjectStream extends ObjectStream
+	{
+		private final ObjectType type;
+		private final ByteArrayInputStream data;
+		private final long length;
+
+		PackedObjectStream(ResolvedObject obj)
+		{
+			this.type = obj.type;
+			this.data = new ByteArrayInputStream(obj.data);
+			this.length = obj.data.length;
+		}
+
+		@Override
+		public ObjectType getType()
+		{
+			return type;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return length;
+		}
+
+		@Override
+		public int read()
+		{
+			return data.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len)
+		{
+			return data.read(b, off, len);
+		}
+
+		@Override
+		public int available()
+		{
+			return data.available();
+		}
+	}
+
+	/**
+	 * An object stream over a large object resolved from a pack file. The
+	 * object is streamed from the pack into a temporary file, which is
+	 * deleted when the stream is closed.
+	 */
+	private static class SpilledObjectStream extends ObjectStream
+	{
+		private final ObjectType type;
+		private final File file;
+		private final InputStream data;
+		private final long length;
+
+		SpilledObjectStream(ObjectType type, File file) throws IOException
+		{
+			this.type = type;
+			this.file = file;
+			this.data = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+			this.length = file.length();
+		}
+
+		@Override
+		public ObjectType getType()
+		{
+			return type;
+		}
+
+		@Override
+		public long getLength()
+		{
+			return length;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			return data.read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			return data.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException
+		{
+			return data.available();
+		}
+
+		@Override
+		public void close() throws IOException
+		{
+			data.close();
+			if (!file.delete()) file.deleteOnExit();
+		}
+	}
+
+	/**
+	 * The location of an object in a pack file
+	 */
+	private static class Location
+	{
+		final Pack pack;
+		final long offset;
+
+		Location(Pack pack, long offset)
+		{
+			this.pack = pack;
+			this.offset = offset;
+		}
+	}
+
+	/// The default size above which packed objects are streamed
+	public static final long DEFAULT_STREAM_THRESHOLD = 32L * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File objectDir;
+	private volatile long streamThreshold = DEFAULT_STREAM_THRESHOLD;
+	private volatile Pack[] packs;		// Most recently used first
+	private volatile boolean closed;
+
+	private final MultiPackIndex midx;	// Null if none
+	private final Pack[] midxPacks;		// Opened on demand, guarded by this
+	private final boolean[] midxFailed;	// Could not be opened, guarded by this
+	private boolean midxStale;			// Covered packs searched, guarded by this
+
+	/**
+	 * Open the object database in the specified objects directory. This
+	 * opens all of the pack files found in the 'pack' subdirectory.
+	 * @param objectDir The '.git/objects' directory
+	 * @throws IOException
+	 */
+	public ObjectDatabase(File objectDir) throws IOException
+	{
+		this.objectDir = objectDir;
+
+		File packDir = new File(objectDir, "pack");
+
+		/*
+		 *	If there is a multi-pack-index, we use it for the packs it
+		 * 	covers. If it cannot be read we ignore it and open all of the
+		 * 	packs, as GIT does.
+		 */
+
+		MultiPackIndex m;
+		try {
+			m = MultiPackIndex.open(packDir);
+		}
+		catch (IOException ex) {
+			m = null;
+		}
+		midx = m;
+
+		Set<String> covered = new HashSet<>();
+		if (midx != null) {
+			midxPacks = new Pack[midx.getPackCount()];
+			for (int i = 0; i < midx.getPackCount(); ++i) {
+				covered.add(midx.getPackName(i));
+			}
+		} else {
+			midxPacks = new Pack[0];
+		}
+		midxFailed = new boolean[midxPacks.length];
+
+		File[] idxFiles = packDir.listFiles((dir, name) -> name.endsWith(".idx") && !covered.contains(name));
+		if (idxFiles == null) idxFiles = new File[0];
+		Arrays.sort(idxFiles);
+
+		Pack[] list = new Pack[idxFiles.length];
+		int count = 0;
+		try {
+			for (File idx : idxFiles) {
+				File packFile = new File(packDir, idx.getName().replace(".idx", ".pack"));
+				if (!packFile.exists()) continue;
+
+				list[count++] = openPack(idx, packFile);
+			}
+		}
+		catch (IOException ex) {
+			for (int i = 0; i < count; ++i) {
+				list[i].pack.close();
+				list[i].index.close();
+			}
+			throw ex;
+		}
+
+		packs = Arrays.copyOf(list, count);
+	}
+
+	private static Pack openPack(File idx, File packFile) throws IOException
+	{
+		IndexReader ir = new IndexReader(idx, true);
+		try {
+			PackReader pr = new PackReader(packFile, true);
+			return new Pack(packFile, ir, pr);
+		}
+		catch (IOException ex) {
+			ir.close();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get the pack with the specified multi-pack-index pack ID, opening it
+	 * if this is the first time it is used. If the pack cannot be opened it
+	 * is marked unusable, and the other packs covered by the
+	 * multi-pack-index are added to our search list.
+	 * @return The pack, or null if it cannot be used
+	 * @throws IOException If the database has been closed
+	 */
+	private synchronized Pack getMidxPack(int packId) throws IOException
+	{
+		checkOpen();
+		if (midxFailed[packId]) return null;
+
+		Pack p = midxPacks[packId];
+		if (p == null) {
+			try {
+				p = openMidxPack(packId);
+			}
+			catch (IOException ex) {
+				midxFailed[packId] = true;
+				addCoveredPacks();
+				return null;
+			}
+			midxPacks[packId] = p;
+		}
+		return p;
+	}
+
+	private Pack openMidxPack(int packId) throws IOException
+	{
+		File packDir = new File(objectDir, "pack");
+		String name = midx.getPackName(packId);
+		File idx = new File(packDir, name);
+		File packFile = new File(packDir, name.replace(".idx", ".pack"));
+		return openPack(idx, packFile);
+	}
+
+	/**
+	 * Once the multi-pack-index is found to be stale, its lookups can no
+	 * longer be trusted to find every object; an object in a missing pack
+	 * may also be in another covered pack, or in a pack written since. So
+	 * we open every covered pack we still can, and add it to the list we
+	 * search without the multi-pack-index. Must be called holding our lock.
+	 */
+	private void addCoveredPacks()
+	{
+		if (midxStale) return;
+		midxStale = true;
+
+		ArrayList<Pack> list = new ArrayList<>(Arrays.asList(packs));
+		for (int i = 0; i < midxPacks.length; ++i) {
+			if (midxFailed[i]) continue;
+			if (midxPacks[i] == null) {
+				try {
+					midxPacks[i] = openMidxPack(i);
+				}
+				catch (IOException ex) {
+					midxFailed[i] = true;
+					continue;
+				}
+			}
+			list.add(midxPacks[i]);
+		}
+		packs = list.toArray(new Pack[0]);
+	}
+
+	/**
+	 * Find the pack containing the object with the specified SHA-1, and
+	 * the offset of the object in the pack.
+	 * @return The location of the object, or null if it is not packed
+	 */
+	private Location findPacked(byte[] sha1) throws IOException
+	{
+		checkOpen();
+
+		if (midx != null) {
+			int pos = midx.findPosition(sha1);
+			if (pos != -1) {
+				Pack p = getMidxPack(midx.getPackId(pos));
+				if (p != null) return new Location(p, midx.getOffset(pos));
+			}
+		}
+
+		Pack[] list = packs;
+		for (int i = 0; i < list.length; ++i) {
+			Pack p = list[i];
+			int pos = p.index.findPosition(sha1);
+			if (pos == -1) continue;
+
+			if (i != 0) promote(p);
+			return new Location(p, p.index.getOffset(pos));
+		}
+		return null;
+	}
+
+	/**
+	 * Set the size above which packed objects are streamed rather than
+	 * resolved in memory, much as GIT's core.bigFileThreshold. Larger
+	 * objects are resolved through a temporary file, so the heap used to
+	 * open them is bounded regardless of their size.
+	 * @param threshold The size in bytes
+	 */
+	public void setStreamThreshold(long threshold)
+	{
+		streamThreshold = threshold;
+	}
+
+	/**
+	 * The objects directory this database reads from
+	 * @return The objects directory
+	 */
+	public File getObjectDirectory()
+	{
+		return objectDir;
+	}
+
+	/**
+	 * Open the object with the specified SHA-1.
+	 * @param sha1 The SHA-1 of the object as a hex string
+	 * @return A stream returning the object contents, or null if the object
+	 * was not found.
+	 * @throws IOException
+	 */
+	public ObjectStream open(String sha1) throws IOException
+	{
+		return open(Hex.toByteArray(sha1));
+	}
+
+	/**
+	 * Open the object with the specified ID.
+	 * @param id The object ID
+	 * @return A stream returning the object contents, or null if the object
+	 * was not found.
+	 * @throws IOException
+	 */
+	public ObjectStream open(ObjectId id) throws IOException
+	{
+		return open(id.toByteArray());
+	}
+
+	/**
+	 * Open the object with the specified SHA-1. Delta objects in pack files
+	 * are resolved, so the type returned is always a base object type.
+	 * Packed objects larger than the stream threshold are streamed from the
+	 * pack rather than held in memory.
+	 * @param sha1 The 20 byte SHA-1 of the object
+	 * @return A stream returning the object contents, or null if the object
+	 * was not found.
+	 * @throws IOException
+	 */
+	public ObjectStream open(byte[] sha1) throws IOException
+	{
+		/*
+		 *	Search our packs first; most objects in a repository of any size
+		 * 	are packed.
+		 */
+
+		Location loc = findPacked(sha1);
+		if (loc != null) {
+			try {
+				ObjectResolver resolver = loc.pack.resolver;
+				if (resolver.getSize(loc.offset) > streamThreshold) {
+					return openStream(resolver, loc.offset);
+				}
+				return new PackedObjectStream(resolver.resolve(loc.offset));
+			}
+			catch (DataFormatException ex) {
+				throw new IOException("Corrupt object " + Hex.toString(sha1) + " in " + loc.pack.file.getName(), ex);
+			}
+		}
+
+		/*
+		 *	Now try the loose objects
+		 */
+
+		File f = ObjectReader.findFileInObjectDirectory(objectDir, Hex.toString(sha1));
+		if (!f.isFile()) return null;
+		return new ObjectReader(f);
+	}
+
+	/**
+	 * Resolve a large object into a temporary file, returning a stream over
+	 * the file.
+	 */
+	private static ObjectStream openStream(ObjectResolver resolver, long offset)
+			throws IOException, DataFormatException
+	{
+		File tmp = File.createTempFile("object", ".tmp");
+		try {
+			ObjectType type;
+			try (OutputStream os = new BufferedOutputStream(new FileOutputStream(tmp), BUFFER_SIZE)) {
+				type = resolver.resolve(offset, os);
+			}
+			return new SpilledObjectStream(type, tmp);
+		}
+		catch (IOException | DataFormatException | RuntimeException ex) {
+			if (!tmp.delete()) tmp.deleteOnExit();
+			throw ex;
+		}
+	}
+
+	/**
+	 * Get the type, size and storage of the object with the specified
+	 * SHA-1, without reading the object contents.
+	 * @param sha1 The SHA-1 of the object as a hex string
+	 * @return The object information, or null if the object was not found
+	 * @throws IOException
+	 */
+	public ObjectInfo getInfo(String sha1) throws IOException
+	{
+		return getInfo(Hex.toByteArray(sha1));
+	}
+
+	/**
+	 * Get the type, size and storage of the object with the specified
+	 * SHA-1, without reading the object contents. For packed objects this
+	 * reads only the object headers down the delta chain; for loose objects
+	 * this inflates only the object header.
+	 * @param sha1 The 20 byte SHA-1 of the object
+	 * @return The object information, or null if the object was not found
+	 * @throws IOException
+	 */
+	public ObjectInfo getInfo(byte[] sha1) throws IOException
+	{
+		Location loc = findPacked(sha1);
+		if (loc != null) {
+			try {
+				return loc.pack.resolver.getInfo(loc.offset);
+			}
+			catch (DataFormatException ex) {
+				throw new IOException("Corrupt object " + Hex.toString(sha1) + " in " + loc.pack.file.getName(), ex);
+			}
+		}
+
+		File f = ObjectReader.findFileInObjectDirectory(objectDir, Hex.toString(sha1));
+		if (!f.isFile()) return null;
+		return ObjectReader.readInfo(f);
+	}
+
+	/**
+	 * Determine if the object with the specified SHA-1 is in this database.
+	 * This does not read the object.
+	 * @param sha1 The 20 byte SHA-1 of the object
+	 * @return True if the object exists
+	 * @throws IOException
+	 */
+	public boolean contains(byte[] sha1) throws IOException
+	{
+		checkOpen();
+
+		if (midx != null) {
+			int pos = midx.findPosition(sha1);
+			if ((pos != -1) && (getMidxPack(midx.getPackId(pos)) != null)) return true;
+		}
+
+		Pack[] list = packs;
+		for (int i = 0; i < list.length; ++i) {
+			if (list[i].index.findPosition(sha1) != -1) {
+				if (i != 0) promote(list[i]);
+				return true;
+			}
+		}
+
+		return ObjectReader.findFileInObjectDirectory(objectDir, Hex.toString(sha1)).isFile();
+	}
+
+	/**
+	 * The number of pack files in this database, including packs covered
+	 * by the multi-pack-index which have not yet been opened, but not those
+	 * which could not be opened
+	 * @return The pack count
+	 */
+	public synchronized int getPackCount()
+	{
+		int count = getOpenPackCount();
+		for (int i = 0; i < midxPacks.length; ++i) {
+			if ((midxPacks[i] == null) && !midxFailed[i]) ++count;
+		}
+		return count;
+	}
+
+	/**
+	 * The number of pack files currently open
+	 * @return The open pack count
+	 */
+	public synchronized int getOpenPackCount()
+	{
+		return getOpenPacks().size();
+	}
+
+	/**
+	 * Every open pack. Once the multi-pack-index is stale, the covered packs
+	 * appear both in our search list and in midxPacks; each is listed once.
+	 */
+	private synchronized Set<Pack> getOpenPacks()
+	{
+		Set<Pack> ret = new LinkedHashSet<>(Arrays.asList(packs));
+		for (Pack p : midxPacks) {
+			if (p != null) ret.add(p);
+		}
+		return ret;
+	}
+
+	private void checkOpen() throws IOException
+	{
+		if (closed) throw new IOException("Object database is closed");
+	}
+
+	/**
+	 * Move the pack to the front of our search list. The list is copied on
+	 * write, so readers never see a partially updated list.
+	 */
+	private synchronized void promote(Pack p)
+	{
+		Pack[] list = packs;
+		if (closed || (list.length == 0) || (list[0] == p)) return;		// Closed while we looked
+
+		Pack[] update = new Pack[list.length];
+		update[0] = p;
+		int j = 1;
+		for (Pack q : list) {
+			if (q != p) update[j++] = q;
+		}
+		packs = update;
+	}
+
+	/**
+	 * Close all of the open pack files. Looking up an object after the
+	 * database is closed throws an IOException.
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		for (Pack p : getOpenPacks()) {
+			p.pack.close();
+			p.index.close();
+		}
+		packs = new Pack[0];
+		Arrays.fill(midxPacks, null);
+	}
+}
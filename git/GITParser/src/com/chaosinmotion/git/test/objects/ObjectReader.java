@@ -1,13 +1,17 @@
 package com.chaosinmotion.git.test.objects;
 
+import com.chaosinmotion.git.test.common.ObjectInfo;
 import com.chaosinmotion.git.test.common.ObjectType;
 import com.chaosinmotion.git.test.common.ValidateResult;
 import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.InflaterPool;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
 
 // https://stackoverflow.com/questions/22968856/what-is-the-file-format-of-a-git-commit-object-data-structure
@@ -23,7 +27,7 @@ import java.util.zip.InflaterInputStream;
  * the SHA1 hash of the object, it will read the object from the file system
  * and return the object.</p>
  */
-public class ObjectReader extends InputStream
+public class ObjectReader extends ObjectStream
 {
 	private InflaterInputStream iis;
 
@@ -117,6 +121,76 @@ public class ObjectReader extends InputStream
 		return new File(scratch,suffix);
 	}
 
+	/**
+	 * Read the type and length of a loose object file. This only inflates
+	 * as much of the file as we need to read the object header, so it is
+	 * much cheaper than opening the object when the contents are not needed.
+	 * @param file The object file
+	 * @return The object information
+	 * @throws IOException
+	 */
+	public static ObjectInfo readInfo(File file) throws IOException
+	{
+		byte[] in = new byte[256];
+		byte[] header = new byte[64];
+		int len = 0;
+		int end;
+
+		Inflater inflater = InflaterPool.acquire();
+		try (FileInputStream fis = new FileInputStream(file)) {
+			while (-1 == (end = indexOf(header, len, (byte)0))) {
+				if ((len == header.length) || inflater.finished()) {
+					throw new IOException("Invalid Object Header");
+				}
+				if (inflater.needsDictionary()) {
+					throw new IOException("ZLib dictionary unexpectedly asked for in header");
+				}
+				if (inflater.needsInput()) {
+					int rlen = fis.read(in);
+					if (rlen <= 0) throw new IOException("Unexpected EOF");
+					inflater.setInput(in, 0, rlen);
+				}
+				len += inflater.inflate(header, len, header.length - len);
+			}
+		}
+		catch (DataFormatException ex) {
+			throw new IOException("Invalid Object Data", ex);
+		}
+		finally {
+			InflaterPool.release(inflater);
+		}
+
+		/*
+		 *	The header is (type)(space)(length)(null)
+		 */
+
+		int space = indexOf(header, end, (byte)' ');
+		if (space == -1) throw new IOException("Invalid Object Header");
+
+		ObjectType type = ObjectType.fromString(new String(header, 0, space, StandardCharsets.UTF_8));
+		if (type == ObjectType.UNKNOWN) {
+			throw new IOException("Invalid Object Type");
+		}
+
+		long length;
+		try {
+			length = Long.parseLong(new String(header, space + 1, end - space - 1, StandardCharsets.UTF_8));
+		}
+		catch (NumberFormatException nfe) {
+			throw new IOException("Invalid Object Length");
+		}
+
+		return new ObjectInfo(type, length, ObjectInfo.Storage.LOOSE, 0, file.length());
+	}
+
+	private static int indexOf(byte[] buffer, int len, byte b)
+	{
+		for (int i = 0; i < len; ++i) {
+			if (buffer[i] == b) return i;
+		}
+		return -1;
+	}
+
 	/**
 	 * The SHA1 signature of an object file must match the name of the object
 	 * file. This decompresses the object file, computes the SHA1 hash and
@@ -197,6 +271,7 @@ public class ObjectReader extends InputStream
 	 * @return The type of this object
 	 */
 
+	@Override
 	public ObjectType getType()
 	{
 		return type;
@@ -208,6 +283,7 @@ public class ObjectReader extends InputStream
 	 * @return The length of this object
 	 */
 
+	@Override
 	public long getLength()
 	{
 		return length;
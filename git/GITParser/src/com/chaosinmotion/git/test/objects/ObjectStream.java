@@ -0,0 +1,27 @@
+package com.chaosinmotion.git.test.objects;
+
+import com.chaosinmotion.git.test.common.ObjectType;
+
+import java.io.InputStream;
+
+/**
+ * An input stream returning the contents of a GIT object, along with the
+ * type and length of the object. This is the common base for objects read
+ * from loose object files (ObjectReader) and objects read from pack files.
+ */
+public abstract class ObjectStream extends InputStream
+{
+	/**
+	 * The type of the object. This will never be one of the pack delta
+	 * types.
+	 * @return The type of this object
+	 */
+	public abstract ObjectType getType();
+
+	/**
+	 * The length of the object. This should be the total length of the
+	 * uncompressed object data
+	 * @return The length of this object
+	 */
+	public abstract long getLength();
+}
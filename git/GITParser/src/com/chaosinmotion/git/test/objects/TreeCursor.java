@@ -0,0 +1,280 @@
+package com.chaosinmotion.git.test.objects;
+
+import com.chaosinmotion.git.test.common.ObjectId;
+import com.chaosinmotion.git.test.utils.Hex;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>A cursor over the contents of a tree object (the data after the object
+ * header) held in memory. This reads the same records as TreeReader:</p>
+ *
+ * <pre>
+ * (mode)(space)(name)(\0)(sha1)
+ * </pre>
+ *
+ * <p>but rather than allocating a record for each entry, the cursor points
+ * into the tree data: the mode is parsed into an int, and the name and
+ * SHA-1 are given as offsets into the array. The name is only decoded into
+ * a String if asked, so walking a tree allocates nothing per entry.</p>
+ *
+ * <p>Typical use:</p>
+ *
+ * <pre>
+ * TreeCursor c = new TreeCursor(data);
+ * while (c.next()) {
+ *     if (c.isTree()) ...
+ * }
+ * </pre>
+ *
+ * <p>The offsets are only valid until the next call to next().</p>
+ */
+public class TreeCursor
+{
+	/*
+	 *	The file type bits of the mode. GIT only stores these types.
+	 */
+	public static final int TYPE_MASK = 0170000;
+	public static final int TREE = 0040000;
+	public static final int FILE = 0100000;
+	public static final int SYMLINK = 0120000;
+	public static final int GITLINK = 0160000;
+
+	private final byte[] data;
+	private final int start;
+	private final int end;
+
+	private int pos;			// Start of the next entry
+	private int mode;
+	private int nameOffset;
+	private int nameLength;
+	private int shaOffset;
+
+	/**
+	 * Create a cursor over the tree data
+	 * @param data The contents of the tree object
+	 */
+	public TreeCursor(byte[] data)
+	{
+		this(data, 0, data.length);
+	}
+
+	/**
+	 * Create a cursor over part of an array holding the tree data
+	 * @param data The array
+	 * @param off The offset of the tree contents
+	 * @param len The length of the tree contents
+	 */
+	public TreeCursor(byte[] data, int off, int len)
+	{
+		if ((off < 0) || (len < 0) || (off + len > data.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+		this.data = data;
+		start = off;
+		end = off + len;
+		pos = off;
+		shaOffset = -1;
+	}
+
+	/**
+	 * Move the cursor back before the first entry
+	 */
+	public void reset()
+	{
+		pos = start;
+		shaOffset = -1;
+	}
+
+	/**
+	 * Move to the next entry, throwing an error if the entry is malformed.
+	 * @return False if there are no more entries
+	 * @throws IOException
+	 */
+	public boolean next() throws IOException
+	{
+		if (pos >= end) {
+			shaOffset = -1;
+			return false;
+		}
+
+		/*
+		 *	Mode is octal, space separated
+		 */
+
+		int p = pos;
+		int m = 0;
+		while ((p < end) && (data[p] != ' ')) {
+			int d = data[p++] - '0';
+			if ((d < 0) || (d > 7) || (m > 0xFFFFFF)) throw new IOException("Invalid tree entry mode");
+			m = (m << 3) | d;
+		}
+		if ((p == pos) || (p >= end)) throw new IOException("Invalid tree entry");
+		++p;
+
+		/*
+		 *	Name is null terminated
+		 */
+
+		int n = p;
+		while ((p < end) && (data[p] != 0)) ++p;
+		if ((p == n) || (p >= end)) throw new IOException("Invalid tree entry name");
+		++p;
+
+		/*
+		 *	SHA1 is always 20 bytes.
+		 */
+
+		if (end - p < 20) throw new IOException("Truncated tree entry");
+
+		mode = m;
+		nameOffset = n;
+		nameLength = p - 1 - n;
+		shaOffset = p;
+		pos = p + 20;
+		return true;
+	}
+
+	/**
+	 * The array holding the tree data. getNameOffset and getSHA1Offset are
+	 * offsets into this array.
+	 * @return The tree data
+	 */
+	public byte[] getData()
+	{
+		return data;
+	}
+
+	/**
+	 * The Unix file mode of the current entry
+	 * @return The mode
+	 */
+	public int getMode()
+	{
+		return mode;
+	}
+
+	/**
+	 * True if the current entry is a subdirectory
+	 * @return True if a tree
+	 */
+	public boolean isTree()
+	{
+		return (mode & TYPE_MASK) == TREE;
+	}
+
+	/**
+	 * The offset of the name of the current entry in getData()
+	 * @return The name offset
+	 */
+	public int getNameOffset()
+	{
+		return nameOffset;
+	}
+
+	/**
+	 * The length in bytes of the name of the current entry
+	 * @return The name length
+	 */
+	public int getNameLength()
+	{
+		return nameLength;
+	}
+
+	/**
+	 * Decode the name of the current entry. This allocates; use nameEquals
+	 * or compareName to test the name.
+	 * @return The name
+	 */
+	public String getName()
+	{
+		return new String(data, nameOffset, nameLength, StandardCharsets.UTF_8);	// always assume UTF-8
+	}
+
+	/**
+	 * Compare the name of the current entry with the UTF-8 bytes provided
+	 * @param name The name to compare against
+	 * @return True if the name is the same
+	 */
+	public boolean nameEquals(byte[] name)
+	{
+		return compareName(name, 0, name.length) == 0;
+	}
+
+	/**
+	 * Compare the name of the current entry, byte by byte as unsigned
+	 * values, against the bytes provided.
+	 * @param name The array holding the name to compare against
+	 * @param off The offset of the name
+	 * @param len The length of the name
+	 * @return Less than zero, zero or greater than zero if the entry name
+	 * sorts before, the same as or after the name provided.
+	 */
+	public int compareName(byte[] name, int off, int len)
+	{
+		int l = Math.min(nameLength, len);
+		for (int i = 0; i < l; ++i) {
+			int a = 0xFF & data[nameOffset + i];
+			int b = 0xFF & name[off + i];
+			if (a != b) return a - b;
+		}
+		return nameLength - len;
+	}
+
+	/**
+	 * The offset of the 20 byte SHA-1 of the current entry in getData()
+	 * @return The SHA-1 offset
+	 */
+	public int getSHA1Offset()
+	{
+		return shaOffset;
+	}
+
+	/**
+	 * Copy the SHA-1 of the current entry
+	 * @param sha1 The destination array
+	 * @param off The offset to write the 20 bytes to
+	 */
+	public void getSHA1(byte[] sha1, int off)
+	{
+		System.arraycopy(data, shaOffset, sha1, off, 20);
+	}
+
+	/**
+	 * The object ID of the current entry
+	 * @return The object ID
+	 */
+	public ObjectId getObjectId()
+	{
+		return ObjectId.fromBytes(data, shaOffset);
+	}
+
+	/**
+	 * The SHA-1 of the current entry as a hex string. This allocates.
+	 * @return The SHA-1
+	 */
+	public String getSHA1String()
+	{
+		byte[] sha1 = new byte[20];
+		getSHA1(sha1, 0);
+		return Hex.toString(sha1);
+	}
+
+	/**
+	 * Find the entry with the specified name. Tree entries are sorted, but
+	 * since directories sort as if their name ended with '/', this scans
+	 * from the start rather than stopping early.
+	 * @param name The UTF-8 bytes of the name
+	 * @return True if found, in which case the cursor is on that entry
+	 * @throws IOException
+	 */
+	public boolean find(byte[] name) throws IOException
+	{
+		reset();
+		while (next()) {
+			if (nameEquals(name)) return true;
+		}
+		return false;
+	}
+}
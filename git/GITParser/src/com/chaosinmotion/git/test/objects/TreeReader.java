@@ -22,6 +22,9 @@ import java.nio.charset.StandardCharsets;
  * Name is a variable length string, terminated by a null byte.
  *
  * SHA1 is always 20 bytes.
+ *
+ * This allocates a record for each entry. To walk a tree already held in
+ * memory without allocating, see TreeCursor.
  */
 public class TreeReader
 {
@@ -45,7 +48,6 @@ public class TreeReader
 	}
 
 	private InputStream in;
-	private byte[] buffer = new byte[20];	// reusable scratch buffer
 
 	public TreeReader(InputStream is)
 	{
@@ -83,10 +85,12 @@ public class TreeReader
 		String name = baos.toString(StandardCharsets.UTF_8);	// always assume UTF-8
 
 		/*
-		 *	SHA1 is always 20 bytes.
+		 *	SHA1 is always 20 bytes. Each record gets its own array, as the
+		 * 	caller may hold on to records after reading the next one.
 		 */
-		if (20 != in.read(buffer,0,20)) return null;
+		byte[] sha1 = new byte[20];
+		if (20 != in.readNBytes(sha1,0,20)) return null;
 
-		return new Record(mode,name,buffer);
+		return new Record(mode,name,sha1);
 	}
 }
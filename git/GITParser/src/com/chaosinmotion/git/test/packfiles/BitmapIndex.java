@@ -0,0 +1,355 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * This reads the reachability bitmaps GIT writes alongside a pack file
+ * ('pack-(sha).bitmap'). For a selection of commits, the file stores a
+ * bitmap with one bit for every object in the pack, set if the object is
+ * reachable from that commit. It also stores a bitmap for each object type,
+ * so combining bitmaps answers questions such as "how many blobs are
+ * reachable from this commit" without walking any trees.
+ *
+ * https://git-scm.com/docs/gitformat-pack#_pack_bitmap_files
+ *
+ * Bit i of each bitmap refers to the i'th object in pack order, which is
+ * the order given by the ReverseIndex. The bitmaps are compressed with
+ * EWAH (a run length encoding of 64-bit words); we decode them into
+ * java.util.BitSet objects, which provide the and, or and andNot
+ * operations we need. To save space a commit bitmap may be stored XORed
+ * against the bitmap of an earlier commit; getBitmap undoes this.
+ *
+ * The file is memory mapped and never modified, so this may be shared
+ * across threads, as long as the index reader is memory mapped as well.
+ */
+public class BitmapIndex
+{
+	private static final int SIGNATURE = 0x4249544d;		// "BITM"
+	private static final int HEADER_SIZE = 32;
+
+	private static final int OPT_FULL_DAG = 0x0001;
+
+	private final MappedFile map;
+	private final IndexReader index;
+	private final ReverseIndex rev;
+	private final int objectCount;
+
+	private final long[] typeBitmaps;		// File offsets of type bitmaps
+
+	/*
+	 *	The commit entries, in the order they appear in the file
+	 */
+	private final int[] entryPosition;		// Index position of the commit
+	private final int[] entryXor;			// XOR offset, or zero
+	private final long[] entryBitmap;		// File offset of the bitmap
+	private final HashMap<Integer, Integer> entryLookup = new HashMap<>();
+
+	/**
+	 * Open the bitmap file for a pack file, if there is one
+	 * @param index The index of the pack file
+	 * @param pack The pack file
+	 * @return The bitmap index, or null if the pack has no bitmap file
+	 * @throws IOException
+	 */
+	public static BitmapIndex load(IndexReader index, PackReader pack) throws IOException
+	{
+		File packFile = pack.getFile();
+		String name = packFile.getName();
+		if (!name.endsWith(".pack")) return null;
+
+		File f = new File(packFile.getParentFile(), name.substring(0, name.length() - 5) + ".bitmap");
+		if (!f.isFile()) return null;
+		return new BitmapIndex(f, index, pack);
+	}
+
+	/**
+	 * Open and memory map the bitmap file
+	 * @param f The .bitmap file
+	 * @param index The index of the pack file
+	 * @param pack The pack file
+	 * @throws IOException
+	 */
+	public BitmapIndex(File f, IndexReader index, PackReader pack) throws IOException
+	{
+		map = new MappedFile(f);
+		this.index = index;
+		rev = ReverseIndex.load(index, pack);
+		objectCount = index.getCount();
+
+		/*
+		 *	Header: signature, version, flags, entry count and the checksum
+		 * 	of the pack file.
+		 */
+
+		if (map.getInt(0) != SIGNATURE) {
+			throw new IOException("Invalid bitmap header");
+		}
+		int version = map.getInt(4) >>> 16;
+		int flags = map.getInt(4) & 0xFFFF;
+		if (version != 1) {
+			throw new IOException("Unsupported bitmap version " + version);
+		}
+		if ((flags & OPT_FULL_DAG) == 0) {
+			throw new IOException("Bitmap does not cover the full history");
+		}
+		int count = map.getInt(8);
+		if (count < 0) {
+			throw new IOException("Invalid bitmap entry count");
+		}
+
+		byte[] checksum = new byte[20];
+		map.get(12, checksum, 0, 20);
+		if (!Hex.equals(checksum, pack.getChecksum())) {
+			throw new IOException("Bitmap does not match pack file");
+		}
+
+		/*
+		 *	The four type bitmaps: commits, trees, blobs and tags
+		 */
+
+		long pos = HEADER_SIZE;
+		typeBitmaps = new long[4];
+		for (int i = 0; i < 4; ++i) {
+			typeBitmaps[i] = pos;
+			pos = skipBitmap(pos);
+		}
+
+		/*
+		 *	The commit entries. Each is the index position of the commit,
+		 * 	the XOR offset, flags, then the bitmap.
+		 */
+
+		entryPosition = new int[count];
+		entryXor = new int[count];
+		entryBitmap = new long[count];
+		for (int i = 0; i < count; ++i) {
+			int position = map.getInt(pos);
+			int xor = map.get(pos + 4);
+			if ((position < 0) || (position >= objectCount)) {
+				throw new IOException("Invalid bitmap commit position");
+			}
+			if ((xor < 0) || (xor > i)) {
+				throw new IOException("Invalid bitmap XOR offset");
+			}
+
+			entryPosition[i] = position;
+			entryXor[i] = xor;
+			entryBitmap[i] = pos + 6;
+			entryLookup.put(position, i);
+
+			pos = skipBitmap(pos + 6);
+		}
+	}
+
+	/**
+	 * The number of objects in the pack, which is the number of bits in
+	 * each bitmap
+	 * @return The object count
+	 */
+	public int getObjectCount()
+	{
+		return objectCount;
+	}
+
+	/**
+	 * The number of commits with stored bitmaps
+	 * @return The commit count
+	 */
+	public int getCommitCount()
+	{
+		return entryPosition.length;
+	}
+
+	/**
+	 * Copy the SHA-1 of the commit of the specified entry
+	 * @param entry The entry, from 0 to getCommitCount() - 1
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getCommit(int entry, byte[] sha1) throws IOException
+	{
+		index.getSHA1(entryPosition[entry], sha1);
+	}
+
+	/**
+	 * The bitmap of all the objects of the specified type
+	 * @param type COMMIT, TREE, BLOB or TAG
+	 * @return The bitmap
+	 * @throws IOException
+	 */
+	public BitSet getTypeBitmap(ObjectType type) throws IOException
+	{
+		switch (type) {
+			case COMMIT: return readBitmap(typeBitmaps[0]);
+			case TREE: return readBitmap(typeBitmaps[1]);
+			case BLOB: return readBitmap(typeBitmaps[2]);
+			case TAG: return readBitmap(typeBitmaps[3]);
+		}
+		throw new IllegalArgumentException("No bitmap for type " + type);
+	}
+
+	/**
+	 * The bitmap of the objects reachable from the specified commit,
+	 * including the commit itself.
+	 * @param sha1 The 20 byte SHA-1 of the commit
+	 * @return The bitmap, or null if there is no bitmap stored for this
+	 * commit
+	 * @throws IOException
+	 */
+	public BitSet getBitmap(byte[] sha1) throws IOException
+	{
+		int position = index.findPosition(sha1);
+		if (position == -1) return null;
+
+		Integer entry = entryLookup.get(position);
+		if (entry == null) return null;
+
+		/*
+		 *	Walk back along the XOR chain to a bitmap stored whole, then
+		 * 	apply the XORs forwards.
+		 */
+
+		ArrayList<Integer> chain = new ArrayList<>();
+		int e = entry;
+		chain.add(e);
+		while (entryXor[e] != 0) {
+			e -= entryXor[e];
+			chain.add(e);
+		}
+
+		BitSet bitmap = readBitmap(entryBitmap[chain.get(chain.size() - 1)]);
+		for (int i = chain.size() - 2; i >= 0; --i) {
+			bitmap.xor(readBitmap(entryBitmap[chain.get(i)]));
+		}
+		return bitmap;
+	}
+
+	/**
+	 * Find the bit for the object with the specified SHA-1
+	 * @param sha1 The 20 byte SHA-1 of the object
+	 * @return The bit, or -1 if the object is not in this pack
+	 * @throws IOException
+	 */
+	public int findBit(byte[] sha1) throws IOException
+	{
+		int position = index.findPosition(sha1);
+		if (position == -1) return -1;
+		return rev.findOffset(index.getOffset(position));
+	}
+
+	/**
+	 * Copy the SHA-1 of the object for the specified bit
+	 * @param bit The bit
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getSHA1(int bit, byte[] sha1) throws IOException
+	{
+		index.getSHA1(rev.getIndexPosition(bit), sha1);
+	}
+
+	/**
+	 * Determine if an object is reachable from a commit with a stored
+	 * bitmap.
+	 * @param commit The SHA-1 of the commit
+	 * @param object The SHA-1 of the object
+	 * @return True if the object is reachable from the commit
+	 * @throws IOException if the commit does not have a stored bitmap
+	 */
+	public boolean isReachable(byte[] commit, byte[] object) throws IOException
+	{
+		BitSet bitmap = getBitmap(commit);
+		if (bitmap == null) {
+			throw new IOException("No bitmap for commit " + Hex.toString(commit));
+		}
+
+		int bit = findBit(object);
+		return (bit != -1) && bitmap.get(bit);
+	}
+
+	/**
+	 * Count the objects of the specified type reachable from a commit with
+	 * a stored bitmap
+	 * @param commit The SHA-1 of the commit
+	 * @param type The object type
+	 * @return The number of reachable objects of that type
+	 * @throws IOException if the commit does not have a stored bitmap
+	 */
+	public int countReachable(byte[] commit, ObjectType type) throws IOException
+	{
+		BitSet bitmap = getBitmap(commit);
+		if (bitmap == null) {
+			throw new IOException("No bitmap for commit " + Hex.toString(commit));
+		}
+
+		bitmap.and(getTypeBitmap(type));
+		return bitmap.cardinality();
+	}
+
+	/*
+	 *	EWAH decoding. A serialized bitmap is the number of bits (4 bytes),
+	 * 	the number of 64-bit words (4 bytes), the words, and the position of
+	 * 	the last run length word (4 bytes).
+	 *
+	 * 	The words are a sequence of run length words, each followed by a
+	 * 	number of literal words. A run length word holds the value of the
+	 * 	run in bit 0, the number of words in the run in bits 1-32, and the
+	 * 	number of literal words that follow in bits 33-63.
+	 */
+
+	private long skipBitmap(long pos) throws IOException
+	{
+		int words = map.getInt(pos + 4);
+		if (words < 0) throw new IOException("Invalid bitmap");
+		return pos + 8 + (long)words * 8 + 4;
+	}
+
+	private BitSet readBitmap(long pos) throws IOException
+	{
+		int bits = map.getInt(pos);
+		int words = map.getInt(pos + 4);
+		if ((bits < 0) || (words < 0) || (bits > ((objectCount + 63) & ~63))) {
+			throw new IOException("Invalid bitmap");
+		}
+
+		// GIT may round the bit count up to a whole number of words
+		long[] out = new long[(bits + 63) >>> 6];
+		int w = 0;
+		long p = pos + 8;
+		long end = p + (long)words * 8;
+
+		while (p < end) {
+			long rlw = map.getLong(p);
+			p += 8;
+
+			long run = (rlw >>> 1) & 0xFFFFFFFFL;
+			int literals = (int)(rlw >>> 33);
+			if ((w + run + literals > out.length) || (p + literals * 8L > end)) {
+				throw new IOException("Invalid bitmap");
+			}
+
+			if ((rlw & 1) != 0) {
+				for (int i = 0; i < run; ++i) out[w + i] = -1L;
+			}
+			w += (int)run;
+
+			for (int i = 0; i < literals; ++i) {
+				out[w++] = map.getLong(p);
+				p += 8;
+			}
+		}
+
+		// A run of ones may extend past the last object
+		BitSet ret = BitSet.valueOf(out);
+		if (ret.length() > objectCount) ret.clear(objectCount, ret.length());
+		return ret;
+	}
+}
@@ -2,80 +2,55 @@ package com.chaosinmotion.git.test.packfiles;
 
 import com.chaosinmotion.git.test.utils.Hex;
 import com.chaosinmotion.git.test.utils.RandomAccess;
-import com.chaosinmotion.git.test.utils.Stream;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * This represents a delta operation from within a pack file that
  * transforms an input file to an output file.
+ *
+ * Rather than creating an object for each instruction in the delta, the
+ * instructions are stored as a packed array of opcodes, one long per
+ * instruction. Insert instructions refer back into the original inflated
+ * delta data rather than copying the bytes to insert, so the memory used
+ * is proportional to the number of instructions.
  */
 public class Delta
 {
-	private interface Op
+	/*
+	 *	Opcode encoding. If the MSB is clear, this is a copy instruction, with
+	 * 	the (unsigned 32-bit) offset into the base in bits 24-55 and the
+	 * 	size (at most 0x10000) in bits 0-23. If the MSB is set this is an
+	 * 	insert instruction, with the offset into our delta data in bits 8-39
+	 * 	and the length (at most 127) in bits 0-7.
+	 */
+	private static final long INSERT = 0x8000000000000000L;
+
+	private static boolean isInsert(long op)
 	{
-		void apply(RandomAccess in, OutputStream out) throws IOException;
+		return (op & INSERT) != 0;
 	}
 
-	private class CopyOp implements Op
+	private static long copyOffset(long op)
 	{
-		final int offset;
-		final int size;
-
-		CopyOp(int offset, int size)
-		{
-			this.offset = offset;
-			this.size = size;
-		}
-
-		public void apply(RandomAccess in, OutputStream out) throws IOException
-		{
-			in.seek(offset);
-			byte[] buffer = new byte[4096];
-
-			int pos = 0;
-			int rlen;
-			while (pos < size) {
-				rlen = size - pos;
-				if (rlen > buffer.length) rlen = buffer.length;
-
-				int len = in.read(buffer, 0, rlen);
-				if (len <= 0) throw new IOException("Unexpected EOF");
-				out.write(buffer, 0, len);
-
-				pos += rlen;
-			}
-		}
-
-		public String toString()
-		{
-			return String.format("copy %d %d", offset, size);
-		}
+		return (op >>> 24) & 0xFFFFFFFFL;
 	}
 
-	private class InsertOp implements Op
+	private static int copySize(long op)
 	{
-		final byte[] data;
-
-		InsertOp(byte[] data)
-		{
-			this.data = data;
-		}
+		return (int)(op & 0xFFFFFF);
+	}
 
-		// NOTE: Ignores the file we're modifying from
-		public void apply(RandomAccess in, OutputStream out) throws IOException
-		{
-			out.write(data);
-		}
+	private static int insertPos(long op)
+	{
+		return (int)((op >>> 8) & 0x7FFFFFFF);
+	}
 
-		public String toString()
-		{
-			// Strictly for testing purposes. There is no reason to believe
-			// in general that data is a string or string fragment.
-			return "insert " + data.length + ": \"" + Hex.toCompactString(data) + "\"";
-		}
+	private static int insertLength(long op)
+	{
+		return (int)(op & 0xFF);
 	}
 
 	/*
@@ -85,7 +60,9 @@ public class Delta
 	public final byte[] sha;
 	public final long baseSize;
 	public final long resultSize;
-	private final Op[] oplist;
+
+	private final byte[] data;		// The inflated delta data
+	private final long[] oplist;	// Packed instructions
 
 	/**
 	 * Given the offset and the block of decompressed data from the PACK file
@@ -94,14 +71,7 @@ public class Delta
 
 	public Delta(long offset, byte[] data) throws IOException
 	{
-		this.offset = offset;
-		this.sha = null;
-
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		baseSize = Stream.readSizeEncoded(bais);
-		resultSize = Stream.readSizeEncoded(bais);
-
-		oplist = parseDelta(bais);
+		this(offset, null, data);
 	}
 
 	/**
@@ -111,22 +81,52 @@ public class Delta
 
 	public Delta(byte[] sha, byte[] data) throws IOException
 	{
-		this.offset = 0;
+		this(0, sha, data);
+	}
+
+	private Delta(long offset, byte[] sha, byte[] data) throws IOException
+	{
+		this.offset = offset;
 		this.sha = sha;
+		this.data = data;
 
-		ByteArrayInputStream bais = new ByteArrayInputStream(data);
-		baseSize = Stream.readSizeEncoded(bais);
-		resultSize = Stream.readSizeEncoded(bais);
+		/*
+		 *	The delta data starts with two size encoded integers; the size
+		 * 	of the base object and the size of the result.
+		 */
 
-		oplist = parseDelta(bais);
+		int pos = 0;
+		long value = 0;
+		int shift = 0;
+		int ch;
+		do {
+			if (pos >= data.length) throw new IOException("Unexpected EOF");
+			ch = data[pos++] & 0xff;
+			value |= (long)(ch & 0x7f) << shift;
+			shift += 7;
+		} while ((ch & 0x80) != 0);
+		baseSize = value;
+
+		value = 0;
+		shift = 0;
+		do {
+			if (pos >= data.length) throw new IOException("Unexpected EOF");
+			ch = data[pos++] & 0xff;
+			value |= (long)(ch & 0x7f) << shift;
+			shift += 7;
+		} while ((ch & 0x80) != 0);
+		resultSize = value;
+
+		oplist = parseDelta(pos);
 	}
 
 	/**
-	 * Given an input stream this parses the delta data table.
-	 * @param in The input stream to read from
-	 * @return The list of operations to perform
+	 * Parse the delta instructions starting at the specified offset into
+	 * our delta data.
+	 * @param start The offset of the first instruction in our data
+	 * @return The packed list of operations to perform
 	 */
-	private Op[] parseDelta(InputStream in) throws IOException
+	private long[] parseDelta(int start) throws IOException
 	{
 
 		/*
@@ -160,78 +160,243 @@ public class Delta
 		 * 	Finally 0x00 is a reserved instruction.
 		 *
 		 * 	We read until there are no more bytes to read.
+		 *
+		 * 	We make two passes; the first counts the instructions so we can
+		 * 	size our opcode array exactly.
 		 */
 
-		ArrayList<Op> list = new ArrayList<>();
-		for (;;) {
-			int ch = in.read();
-			if (ch == -1) break;
+		int count = 0;
+		int pos = start;
+		while (pos < data.length) {
+			int ch = data[pos++] & 0xff;
+			if ((ch & 0x80) != 0) {
+				pos += Integer.bitCount(ch & 0x7f);
+				++count;
+			} else if (ch != 0) {
+				pos += ch;
+				++count;
+			}
+		}
+		if (pos > data.length) throw new IOException("Unexpected EOF");
+
+		long[] ops = new long[count];
+		int index = 0;
+		pos = start;
+		while (pos < data.length) {
+			int ch = data[pos++] & 0xff;
 
 			if ((ch & 0x80) != 0) {
 				// Copy command
-				int off = 0;
+				long off = 0;
 				int size = 0;
 
-				if ((ch & 0x01) != 0) {
-					off = in.read();
-					if (off == -1) throw new IOException("Unexpected EOF");
-				}
-				if ((ch & 0x02) != 0) {
-					off |= in.read() << 8;
-					if (off == -1) throw new IOException("Unexpected EOF");
-				}
-				if ((ch & 0x04) != 0) {
-					off |= in.read() << 16;
-					if (off == -1) throw new IOException("Unexpected EOF");
-				}
-				if ((ch & 0x08) != 0) {
-					off |= in.read() << 24;
-					if (off == -1) throw new IOException("Unexpected EOF");
-				}
+				if ((ch & 0x01) != 0) off = (data[pos++] & 0xff);
+				if ((ch & 0x02) != 0) off |= (data[pos++] & 0xff) << 8;
+				if ((ch & 0x04) != 0) off |= (data[pos++] & 0xff) << 16;
+				if ((ch & 0x08) != 0) off |= (long)(data[pos++] & 0xff) << 24;
 
-				if ((ch & 0x10) != 0) {
-					size = in.read();
-					if (size == -1) throw new IOException("Unexpected EOF");
-				}
-				if ((ch & 0x20) != 0) {
-					size |= in.read() << 8;
-					if (size == -1) throw new IOException("Unexpected EOF");
-				}
-				if ((ch & 0x40) != 0) {
-					size |= in.read() << 16;
-					if (size == -1) throw new IOException("Unexpected EOF");
-				}
+				if ((ch & 0x10) != 0) size = (data[pos++] & 0xff);
+				if ((ch & 0x20) != 0) size |= (data[pos++] & 0xff) << 8;
+				if ((ch & 0x40) != 0) size |= (data[pos++] & 0xff) << 16;
 				if (size == 0) size = 0x10000;
 
-				list.add(new CopyOp(off, size));
+				ops[index++] = (off << 24) | size;
 			} else if (ch != 0) {
 				// Insert command
-				byte[] data = new byte[ch];
-				if (ch != in.read(data)) {
-					throw new IOException("Unexpected EOF");
-				}
-				list.add(new InsertOp(data));
+				ops[index++] = INSERT | ((long)pos << 8) | ch;
+				pos += ch;
 			} else {
 				// Ignore
 			}
 		}
 
-		return list.toArray(new Op[list.size()]);
+		return ops;
 	}
 
 
 	/**
 	 * Given an input file that this delta represents, and the output
 	 * stream to write to, this applies the delta and writes the data out.
+	 *
+	 * This is the general path, which works with bases of any size. If the
+	 * base is in memory, the array or ByteBuffer versions of apply are
+	 * considerably faster.
 	 * @param in
 	 * @param out
 	 * @throws IOException
 	 */
 	public void apply(RandomAccess in, OutputStream out) throws IOException
 	{
-		for (Op op : oplist) {
-			op.apply(in, out);
+		apply(in, out, new byte[4096]);
+	}
+
+	/**
+	 * Apply the delta from the input file to the output stream, using the
+	 * supplied buffer to copy data from the base. The buffer size bounds the
+	 * amount of memory used, regardless of the size of the objects.
+	 * @param in The base object
+	 * @param out The stream to write the result to
+	 * @param buffer The scratch buffer shared by all copy operations
+	 * @return The number of bytes written
+	 * @throws IOException
+	 */
+	public long apply(RandomAccess in, OutputStream out, byte[] buffer) throws IOException
+	{
+		long written = 0;
+
+		for (long op : oplist) {
+			if (isInsert(op)) {
+				// NOTE: Ignores the file we're modifying from
+				out.write(data, insertPos(op), insertLength(op));
+				written += insertLength(op);
+				continue;
+			}
+
+			int size = copySize(op);
+			in.seek(copyOffset(op));
+
+			int pos = 0;
+			int rlen;
+			while (pos < size) {
+				rlen = size - pos;
+				if (rlen > buffer.length) rlen = buffer.length;
+
+				int len = in.read(buffer, 0, rlen);
+				if (len <= 0) throw new IOException("Unexpected EOF");
+				out.write(buffer, 0, len);
+
+				pos += len;
+			}
+			written += size;
+		}
+		return written;
+	}
+
+	/**
+	 * Apply the delta to a base object held in memory, returning a new array
+	 * containing the result.
+	 * @param in The base object, which must be baseSize bytes long
+	 * @return The result of applying the delta
+	 * @throws IOException
+	 */
+	public byte[] apply(byte[] in) throws IOException
+	{
+		if (resultSize > Integer.MAX_VALUE - 8) {
+			throw new IOException("Delta result too large");
 		}
+
+		byte[] out = new byte[(int)resultSize];
+		apply(in, in.length, out);
+		return out;
+	}
+
+	/**
+	 * Apply the delta to a base object held in memory, writing the result
+	 * into the output array. The output array must hold at least resultSize
+	 * bytes; this allows callers to reuse the same buffers when applying a
+	 * chain of deltas.
+	 * @param in The base object
+	 * @param inLength The number of valid bytes in the base object array,
+	 *                 which must match baseSize
+	 * @param out The buffer to write the result to
+	 * @return The number of bytes written to the output array, which will
+	 * be resultSize
+	 * @throws IOException
+	 */
+	public int apply(byte[] in, int inLength, byte[] out) throws IOException
+	{
+		if (inLength != baseSize) {
+			throw new IOException("Base size mismatch");
+		}
+		if (out.length < resultSize) {
+			throw new IOException("Delta result overflow");
+		}
+
+		int pos = 0;
+		for (long op : oplist) {
+			if (isInsert(op)) {
+				int len = insertLength(op);
+				if (pos + len > resultSize) {
+					throw new IOException("Delta result overflow");
+				}
+				System.arraycopy(data, insertPos(op), out, pos, len);
+				pos += len;
+			} else {
+				long off = copyOffset(op);
+				int size = copySize(op);
+				if (off + size > inLength) {
+					throw new IOException("Delta copy outside of base object");
+				}
+				if (pos + size > resultSize) {
+					throw new IOException("Delta result overflow");
+				}
+				System.arraycopy(in, (int)off, out, pos, size);
+				pos += size;
+			}
+		}
+
+		if (pos != resultSize) {
+			throw new IOException("Result size mismatch");
+		}
+		return pos;
+	}
+
+	/**
+	 * Apply the delta to a base object held in a ByteBuffer, such as a
+	 * memory mapped region, writing the result into the output array. The
+	 * base object runs from zero to the limit of the buffer; the buffer
+	 * position is not used or modified.
+	 * @param in The base object, whose limit must match baseSize
+	 * @param out The buffer to write the result to, which must hold at least
+	 *            resultSize bytes
+	 * @return The number of bytes written to the output array
+	 * @throws IOException
+	 */
+	public int apply(ByteBuffer in, byte[] out) throws IOException
+	{
+		if (in.limit() != baseSize) {
+			throw new IOException("Base size mismatch");
+		}
+		if (out.length < resultSize) {
+			throw new IOException("Delta result overflow");
+		}
+
+		int pos = 0;
+		for (long op : oplist) {
+			if (isInsert(op)) {
+				int len = insertLength(op);
+				if (pos + len > resultSize) {
+					throw new IOException("Delta result overflow");
+				}
+				System.arraycopy(data, insertPos(op), out, pos, len);
+				pos += len;
+			} else {
+				long off = copyOffset(op);
+				int size = copySize(op);
+				if (off + size > in.limit()) {
+					throw new IOException("Delta copy outside of base object");
+				}
+				if (pos + size > resultSize) {
+					throw new IOException("Delta result overflow");
+				}
+				in.get((int)off, out, pos, size);
+				pos += size;
+			}
+		}
+
+		if (pos != resultSize) {
+			throw new IOException("Result size mismatch");
+		}
+		return pos;
+	}
+
+	/**
+	 * The number of instructions in this delta
+	 * @return The instruction count
+	 */
+	public int getOpCount()
+	{
+		return oplist.length;
 	}
 
 	public void dump()
@@ -243,8 +408,16 @@ public class Delta
 		}
 		System.out.println("    baseSize: " + baseSize + " resultSize: " + resultSize);
 		System.out.println();
-		for (Op op : oplist) {
-			System.out.println("    " + op);
+		for (long op : oplist) {
+			if (isInsert(op)) {
+				// Strictly for testing purposes. There is no reason to believe
+				// in general that data is a string or string fragment.
+				int pos = insertPos(op);
+				byte[] insert = Arrays.copyOfRange(data, pos, pos + insertLength(op));
+				System.out.println("    insert " + insert.length + ": \"" + Hex.toCompactString(insert) + "\"");
+			} else {
+				System.out.println(String.format("    copy %d %d", copyOffset(op), copySize(op)));
+			}
 		}
 	}
 }
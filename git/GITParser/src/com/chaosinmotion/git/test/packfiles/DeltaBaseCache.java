@@ -0,0 +1,136 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache of resolved delta base objects, keyed by the
+ * offset of the object within its pack file. This is modeled after GIT's own
+ * delta base cache, which is bounded by core.deltaBaseCacheLimit: rather
+ * than limiting the number of entries, we limit the total number of bytes
+ * of object data we hold on to.
+ *
+ * Because the key is a pack offset, a cache should only ever be used with
+ * a single pack file.
+ *
+ * This is safe to use from multiple threads.
+ */
+public class DeltaBaseCache
+{
+	/// The default cache size limit; matches GIT's default of 96MB
+	public static final long DEFAULT_LIMIT = 96L * 1024 * 1024;
+
+	private final LinkedHashMap<Long, ResolvedObject> cache;
+	private final long limit;
+	private long used;
+
+	private long hits;
+	private long misses;
+
+	/**
+	 * Construct a cache with the default size limit
+	 */
+	public DeltaBaseCache()
+	{
+		this(DEFAULT_LIMIT);
+	}
+
+	/**
+	 * Construct a cache which holds no more than the specified number of
+	 * bytes of object data.
+	 * @param limit The maximum number of bytes to cache
+	 */
+	public DeltaBaseCache(long limit)
+	{
+		this.limit = limit;
+		this.cache = new LinkedHashMap<>(64, 0.75f, true);	// access order
+	}
+
+	/**
+	 * Look up the object at the given pack offset. This updates the hit
+	 * and miss counters.
+	 * @param offset The offset of the object in the pack file
+	 * @return The cached object, or null if not cached
+	 */
+	public synchronized ResolvedObject get(long offset)
+	{
+		ResolvedObject ret = cache.get(offset);
+		if (ret != null) {
+			++hits;
+		} else {
+			++misses;
+		}
+		return ret;
+	}
+
+	/**
+	 * Add the resolved object to the cache, evicting the least recently used
+	 * objects until the total size is under our limit. Objects larger than
+	 * the limit are not cached.
+	 * @param offset The offset of the object in the pack file
+	 * @param obj The resolved object
+	 */
+	public synchronized void put(long offset, ResolvedObject obj)
+	{
+		long len = obj.data.length;
+		if (len > limit) return;
+
+		ResolvedObject old = cache.put(offset, obj);
+		if (old != null) used -= old.data.length;
+		used += len;
+
+		Iterator<Map.Entry<Long, ResolvedObject>> iter = cache.entrySet().iterator();
+		while ((used > limit) && iter.hasNext()) {
+			Map.Entry<Long, ResolvedObject> e = iter.next();
+			used -= e.getValue().data.length;
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Remove all the objects from the cache. This does not reset the hit
+	 * and miss counters.
+	 */
+	public synchronized void clear()
+	{
+		cache.clear();
+		used = 0;
+	}
+
+	/**
+	 * The number of times get found the requested object
+	 * @return The hit count
+	 */
+	public synchronized long getHits()
+	{
+		return hits;
+	}
+
+	/**
+	 * The number of times get did not find the requested object
+	 * @return The miss count
+	 */
+	public synchronized long getMisses()
+	{
+		return misses;
+	}
+
+	/**
+	 * The total number of bytes of object data currently held in the cache
+	 * @return The cache size in bytes
+	 */
+	public synchronized long getSize()
+	{
+		return used;
+	}
+
+	/**
+	 * The maximum number of bytes of object data this cache will hold
+	 * @return The cache limit in bytes
+	 */
+	public long getLimit()
+	{
+		return limit;
+	}
+}
@@ -0,0 +1,26 @@
+package com.chaosinmotion.git.test.packfiles;
+
+/**
+ * The start of a delta object in a pack file: the reference to its base
+ * object, and the sizes of the base and of the object the delta produces.
+ * This is returned by PackReader.readDeltaHeader, which reads this much
+ * without inflating the delta instructions.
+ */
+public class DeltaHeader
+{
+	/*
+	 *	One of the two values below will be defined, as with Delta
+	 */
+	public final long offset;
+	public final byte[] sha;
+	public final long baseSize;
+	public final long resultSize;
+
+	DeltaHeader(long offset, byte[] sha, long baseSize, long resultSize)
+	{
+		this.offset = offset;
+		this.sha = sha;
+		this.baseSize = baseSize;
+		this.resultSize = resultSize;
+	}
+}
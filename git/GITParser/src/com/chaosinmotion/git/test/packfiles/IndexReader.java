@@ -2,12 +2,17 @@ package com.chaosinmotion.git.test.packfiles;
 
 import com.chaosinmotion.git.test.common.ValidateResult;
 import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * This wraps a random access file in order to provide access to reading
@@ -23,10 +28,17 @@ import java.security.NoSuchAlgorithmException;
  * loads the first fanout table into memory for quick access, meaning it's
  * useful to open this file and leave it open so long as we need to access
  * the pack file this indexes.
+ *
+ * The index can optionally be memory mapped. In that mode the fanout, SHA,
+ * CRC and offset tables are read in place without seeking, so lookups do
+ * not make any system calls, and the reader may be shared across threads.
+ * When not mapped, each lookup seeks the shared file pointer, so the reader
+ * must not be used by more than one thread at a time.
  */
 public class IndexReader
 {
-	private RandomAccessFile file;
+	private RandomAccessFile file;	// Set if we are not memory mapped
+	private MappedFile map;			// Set if we are memory mapped
 	private int version;
 	private int[] fanout;	// a 256-byte table
 
@@ -51,51 +63,51 @@ public class IndexReader
 	}
 
 	/**
-	 * Internal method returning the min and max index bounds for searching
-	 * in our arrays
+	 * Opens the file for access. This reads the header and the first fanout
+	 * table into memory.
+	 * @param f
 	 */
-	private static class Bounds
+	public IndexReader(File f) throws IOException
 	{
-		private final int min;
-		private final int max;
-
-		private Bounds(int min, int max)
-		{
-			this.min = min;
-			this.max = max;
-		}
+		this(f, false);
 	}
 
 	/**
-	 * Opens the file for access. This reads the header and the first fanout
-	 * table into memory.
-	 * @param f
+	 * Opens the file for access, optionally memory mapping the entire index
+	 * file. This reads the header and the first fanout table into memory.
+	 * @param f The index file
+	 * @param mapped True if the index file should be memory mapped
+	 * @throws IOException
 	 */
-	public IndexReader(File f) throws IOException
+	public IndexReader(File f, boolean mapped) throws IOException
 	{
-		file = new RandomAccessFile(f, "r");	// We only need read access
+		if (mapped) {
+			map = new MappedFile(f);
+		} else {
+			file = new RandomAccessFile(f, "r");	// We only need read access
+		}
 
 		/*
-		 *	Read the fanout table header. Note that RandomAccessFile supports
-		 * 	DataInput, which helps us read the 4-byte integers that comprise
-		 * 	the bulk of this file.
+		 *	Read the fanout table header. The bulk of this file is comprised
+		 * 	of 4-byte big-endian integers, which our readInt helper reads from
+		 * 	either the mapped file or the random access file.
 		 */
 
-		int h = file.readInt();
-		int v = file.readInt();
+		int h = readInt(0);
+		int v = readInt(4);
 
 		fanout = new int[256];
 		if (h == 0xff744f63) {		// "\377tOc"
 			version = v;
 			for (int i = 0; i < 256; ++i) {
-				fanout[i] = file.readInt();
+				fanout[i] = readInt(8 + i * 4);
 			}
 		} else {
 			version = 1;
 			fanout[0] = h;
 			fanout[1] = v;
 			for (int i = 2; i < 256; ++i) {
-				fanout[i] = file.readInt();
+				fanout[i] = readInt(i * 4);
 			}
 		}
 
@@ -131,13 +143,53 @@ public class IndexReader
 		return version;
 	}
 
+	/**
+	 * Get the number of objects in this index
+	 * @return The number of objects
+	 */
+	public int getCount()
+	{
+		return size;
+	}
+
 	/**
 	 * Close the random access file.
 	 * @throws IOException
 	 */
 	public void close() throws IOException
 	{
-		file.close();
+		if (file != null) file.close();
+	}
+
+	/*
+	 *	Internal accessors. These read from the mapped file if we have one,
+	 * 	and otherwise seek and read from the random access file.
+	 */
+
+	private int readInt(long pos) throws IOException
+	{
+		if (map != null) return map.getInt(pos);
+
+		file.seek(pos);
+		return file.readInt();
+	}
+
+	private long readLong(long pos) throws IOException
+	{
+		if (map != null) return map.getLong(pos);
+
+		file.seek(pos);
+		return file.readLong();
+	}
+
+	private void readBytes(long pos, byte[] buffer) throws IOException
+	{
+		if (map != null) {
+			map.get(pos, buffer, 0, buffer.length);
+		} else {
+			file.seek(pos);
+			file.readFully(buffer);
+		}
 	}
 
 	/**
@@ -289,44 +341,118 @@ public class IndexReader
 	}
 
 	public Record getRecord(byte[] sha1bytes) throws IOException
+	{
+		int index = findPosition(sha1bytes);
+		if (index == -1) return null;
+
+		byte[] sha1 = new byte[20];
+		getSHA1(index, sha1);
+		return new Record(sha1, getOffset(index), getCRC(index));
+	}
+
+	/**
+	 * Find the position of the object in the sorted SHA-1 table. This is
+	 * the index used by getOffset, getCRC and getSHA1. When memory mapped
+	 * this does not allocate any memory.
+	 * @param sha1bytes The SHA-1 of the object to search for
+	 * @return The position in the SHA-1 table, or -1 if not found
+	 * @throws IOException
+	 */
+	public int findPosition(byte[] sha1bytes) throws IOException
 	{
 		/*
-		 *	How we access the information depends on the version of the index.
-		 * 	Version 1 access is a bit easier.
+		 *	Peel off the first byte to form an index into our fanout table,
+		 * 	which gives us the range of the table to search
 		 */
 
+		int index = sha1bytes[0] & 0xff;
+		int min = (index == 0) ? 0 : fanout[index - 1];
+		int max = fanout[index];
+
+		return binarySearch(sha1bytes, min, max);
+	}
+
+	/**
+	 * Get the offset into the pack file of the object at the specified
+	 * position in the SHA-1 table.
+	 * @param index The position in the SHA-1 table
+	 * @return The offset into the pack file
+	 * @throws IOException
+	 */
+	public long getOffset(int index) throws IOException
+	{
 		if (version == 1) {
-			return getVersion1Record(sha1bytes);
-		} else {
-			return getVersion2Record(sha1bytes);
+			/*
+			 *	Each item is 'offset' (4 bytes) + 'sha1' (20 bytes)
+			 */
+
+			return readInt(offsetStart + (long)index * 24) & 0xFFFFFFFFL;
 		}
+
+		long offset = readInt(offsetPack + (long)index * 4);
+
+		/*
+		 *	If the MSB of offset is set, this is an index into our 8-byte
+		 * 	offset table
+		 */
+
+		if ((offset & 0x80000000) != 0) {
+			offset = readLong(offset64Pack + (offset & 0x7FFFFFFF) * 8);
+		}
+		return offset;
 	}
 
 	/**
-	 * Return the boundary indexes. Min is the minimum index; max is the index
-	 * of the item *past* the last item in the range. If min == max, there are
-	 * no items in the SHA array.
-	 * @param sha1bytes
-	 * @return
+	 * Get the CRC32 of the packed object at the specified position in the
+	 * SHA-1 table. Version 1 index files do not store CRCs, so this returns
+	 * zero for those.
+	 * @param index The position in the SHA-1 table
+	 * @return The CRC of the compressed object data
+	 * @throws IOException
 	 */
-	private Bounds findSHA1Bounds(byte[] sha1bytes)
+	public int getCRC(int index) throws IOException
 	{
-		int min, max;
-		int index = sha1bytes[0] & 0xff;
+		if (version == 1) return 0;
+		return readInt(offsetCRC + (long)index * 4);
+	}
+
+	/**
+	 * Copy the SHA-1 at the specified position in the SHA-1 table into
+	 * the provided buffer.
+	 * @param index The position in the SHA-1 table
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getSHA1(int index, byte[] sha1) throws IOException
+	{
+		readBytes(shaPosition(index), sha1);
+	}
+
+	/**
+	 * Return the byte offset into the index file of the SHA-1 at the given
+	 * position in the table.
+	 */
+	private long shaPosition(int index)
+	{
+		if (version == 1) {
+			/*
+			 *	Each item is 'offset' (4 bytes) + 'sha1' (20 bytes)
+			 */
 
-		if (index == 0) {
-			min = 0;
+			return 4 + offsetStart + (long)index * 24;
 		} else {
-			min = fanout[index - 1];
-		}
-		max = fanout[index];
+			/*
+			 *	Each item is 'sha1' (20 bytes)
+			 */
 
-		return new Bounds(min, max);
+			return offsetStart + (long)index * 20;
+		}
 	}
 
 	/**
 	 * Perform a binary search on the SHA1 array, returning the found index or
-	 * -1 if not found. Please note that
+	 * -1 if not found. If we are memory mapped the comparison is done in
+	 * place, without copying the SHA-1 out of the table.
 	 * @param sha1Bytes
 	 * @param min
 	 * @param max
@@ -335,33 +461,25 @@ public class IndexReader
 	private int binarySearch(byte[] sha1Bytes, int min, int max) throws
 			IOException
 	{
-		byte[] sha1 = new byte[20];
+		byte[] sha1 = (map == null) ? new byte[20] : null;
 
 		while (min < max) {
-			int mid = (min + max) / 2;
+			int mid = (min + max) >>> 1;
 
 			/*
 			 *	Get the SHA1 key, depending on the version. This requires we
 			 * 	read data from our file.
 			 */
 
-			long fileOffset;
-			if (version == 1) {
-				/*
-				 *	Each item is 'offset' (4 bytes) + 'sha1' (20 bytes)
-				 */
-
-				fileOffset = 4 + offsetStart + (mid * 24);
+			long fileOffset = shaPosition(mid);
+			int cmp;
+			if (map != null) {
+				cmp = map.compare(fileOffset, sha1Bytes, 0, 20);
 			} else {
-
-				/*
-				 *	Each item is 'sha1' (20 bytes)
-				 */
-				fileOffset = offsetStart + (mid * 20);
+				file.seek(fileOffset);
+				file.readFully(sha1);
+				cmp = Hex.compare(sha1Bytes, sha1);
 			}
-			file.seek(fileOffset);
-			file.read(sha1);
-			int cmp = Hex.compare(sha1Bytes, sha1);
 
 			if (cmp < 0) {
 				max = mid;
@@ -375,85 +493,238 @@ public class IndexReader
 	}
 
 	/**
-	 * Version 1: The SHA1 items are stored in a singular table. SHA1 records
-	 * are sorted in order, so we can do a binary search on the table. We peel
-	 * off the first byte to form an index into our fanout table.
-	 * @param sha1bytes The SHA-1 of the object to search for
-	 * @return The record, or null if not found
+	 * Look up the positions of many objects at once. Rather than performing
+	 * an independent binary search for each object, this sorts the objects
+	 * and walks each fanout bucket of the SHA-1 table once, merging the
+	 * sorted requests against the sorted table. (Buckets with only a few
+	 * requests relative to their size are still binary searched.)
+	 *
+	 * If a pool is provided and the index is memory mapped, the fanout
+	 * buckets are split across the pool.
+	 * @param sha1s The 20 byte SHA-1s of the objects to look up
+	 * @param pool The pool to run the lookup on, or null to run on the
+	 *             calling thread
+	 * @return The positions in the SHA-1 table of each object, in the same
+	 * order as the input, with -1 for objects not found.
+	 * @throws IOException
 	 */
-	private Record getVersion1Record(byte[] sha1bytes) throws IOException
+	public int[] findPositions(byte[][] sha1s, ForkJoinPool pool) throws IOException
 	{
-		Bounds bounds = findSHA1Bounds(sha1bytes);
-		int index = binarySearch(sha1bytes, bounds.min, bounds.max);
-		if (index == -1) return null;
+		int count = sha1s.length;
+		int[] ret = new int[count];
 
 		/*
-		 *	We found the index. Now we need to read the offset and SHA
-		 * 	from the file.
+		 *	Sort the requests. We first bucket them by the first byte, the
+		 * 	same way our fanout table does, then sort each bucket.
 		 */
 
-		long fileOffset = offsetStart + ((long)index * 24);
-		file.seek(fileOffset);
-		byte[] sha1 = new byte[20];
-		long offset = file.readInt();
-		file.read(sha1);
+		int[] start = new int[257];
+		for (byte[] sha1 : sha1s) {
+			++start[(sha1[0] & 0xff) + 1];
+		}
+		for (int i = 0; i < 256; ++i) {
+			start[i + 1] += start[i];
+		}
 
-		// Sanity check: make sure we read the right index
-		if (!Hex.equals(sha1bytes, sha1)) {
-			throw new IOException("SHA1 mismatch");
+		int[] order = new int[count];
+		int[] fill = Arrays.copyOf(start, 256);
+		for (int i = 0; i < count; ++i) {
+			order[fill[sha1s[i][0] & 0xff]++] = i;
 		}
 
-		return new Record(sha1, offset, 0);
+		/*
+		 *	Now process each bucket
+		 */
+
+		if ((pool != null) && (map != null) && (count > BATCH_SPLIT)) {
+			try {
+				pool.invoke(new BatchTask(this, sha1s, order, start, ret, 0, 256));
+			}
+			catch (UncheckedIOException ex) {
+				throw ex.getCause();
+			}
+		} else {
+			int[] scratch = new int[count];
+			byte[] sha1 = new byte[20];
+			for (int b = 0; b < 256; ++b) {
+				findBucket(sha1s, order, start[b], start[b + 1], b, ret, scratch, sha1);
+			}
+		}
+
+		return ret;
 	}
 
 	/**
-	 * Version 2: The SHA1 items are stored in multiple tables. Get the index
-	 * and load the elements from the various table entries
-	 * @param sha1bytes The SHA-1 of the object to search for
-	 * @return The record, or null if not found
+	 * Look up the pack offsets and CRCs of many objects at once. See
+	 * findPositions.
+	 * @param sha1s The 20 byte SHA-1s of the objects to look up
+	 * @param crcs If not null, filled with the CRCs of the objects found, in
+	 *             the same order as the input
+	 * @param pool The pool to run the lookup on, or null
+	 * @return The offsets into the pack file of each object, in the same
+	 * order as the input, with -1 for objects not found.
+	 * @throws IOException
 	 */
+	public long[] getOffsets(byte[][] sha1s, int[] crcs, ForkJoinPool pool) throws IOException
+	{
+		int[] pos = findPositions(sha1s, pool);
+		long[] ret = new long[pos.length];
 
-	private Record getVersion2Record(byte[] sha1bytes) throws IOException
+		for (int i = 0; i < pos.length; ++i) {
+			if (pos[i] == -1) {
+				ret[i] = -1;
+				if (crcs != null) crcs[i] = 0;
+			} else {
+				ret[i] = getOffset(pos[i]);
+				if (crcs != null) crcs[i] = getCRC(pos[i]);
+			}
+		}
+		return ret;
+	}
+
+	// Minimum number of requests worth splitting across a pool
+	private static final int BATCH_SPLIT = 1024;
+
+	/**
+	 * Task which processes a range of fanout buckets for findPositions.
+	 */
+	private static class BatchTask extends RecursiveAction
 	{
-		Bounds bounds = findSHA1Bounds(sha1bytes);
-		int index = binarySearch(sha1bytes, bounds.min, bounds.max);
-		if (index == -1) return null;
+		private static final long serialVersionUID = 1L;
 
-		/*
-		 *	We found the index. Our elements are pulled from three separate
-		 * 	tables.
-		 */
+		private final IndexReader index;
+		private final byte[][] sha1s;
+		private final int[] order;
+		private final int[] start;
+		private final int[] ret;
+		private final int lo;
+		private final int hi;
 
-		long fileOffset = offsetStart + (long)index * 20;
-		file.seek(fileOffset);
-		byte[] sha1 = new byte[20];
-		file.read(sha1);
+		BatchTask(IndexReader index, byte[][] sha1s, int[] order, int[] start, int[] ret, int lo, int hi)
+		{
+			this.index = index;
+			this.sha1s = sha1s;
+			this.order = order;
+			this.start = start;
+			this.ret = ret;
+			this.lo = lo;
+			this.hi = hi;
+		}
 
-		fileOffset = offsetCRC + (long)index * 4;
-		file.seek(fileOffset);
-		int crc = file.readInt();
+		@Override
+		protected void compute()
+		{
+			if ((hi - lo > 1) && (start[hi] - start[lo] > BATCH_SPLIT)) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new BatchTask(index, sha1s, order, start, ret, lo, mid),
+						new BatchTask(index, sha1s, order, start, ret, mid, hi));
+				return;
+			}
 
-		fileOffset = offsetPack + (long)index * 4;
-		file.seek(fileOffset);
-		long offset = file.readInt();
+			try {
+				int[] scratch = new int[start[hi] - start[lo]];
+				for (int b = lo; b < hi; ++b) {
+					index.findBucket(sha1s, order, start[b], start[b + 1], b, ret, scratch, null);
+				}
+			}
+			catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Find the requests in order[from..to), all of which fall in the same
+	 * fanout bucket, storing the results in ret.
+	 */
+	private void findBucket(byte[][] sha1s, int[] order, int from, int to, int bucket,
+			int[] ret, int[] scratch, byte[] sha1) throws IOException
+	{
+		int count = to - from;
+		if (count == 0) return;
+
+		int min = (bucket == 0) ? 0 : fanout[bucket - 1];
+		int max = fanout[bucket];
+		int n = max - min;
 
 		/*
-		 *	If the MSB of fileOffset is set, this is an index into our 8-byte
-		 * 	offset table
+		 *	If there are few requests relative to the size of the bucket, we
+		 * 	are better off with binary searches.
 		 */
 
-		if ((offset & 0x80000000) != 0) {
-			fileOffset = offset64Pack + (long)(offset & 0x7FFFFFFF) * 8;
-			file.seek(fileOffset);
-			offset = file.readLong();
+		if ((long)count * (33 - Integer.numberOfLeadingZeros(n)) < n) {
+			for (int i = from; i < to; ++i) {
+				ret[order[i]] = binarySearch(sha1s[order[i]], min, max);
+			}
+			return;
+		}
+
+		/*
+		 *	Otherwise sort the requests and merge them against the table.
+		 */
+
+		sortRequests(sha1s, order, from, to, scratch);
+
+		int t = min;
+		for (int i = from; i < to; ++i) {
+			byte[] key = sha1s[order[i]];
+			int cmp = 1;
+			while ((t < max) && ((cmp = compareAt(t, key, sha1)) > 0)) {
+				++t;
+			}
+			ret[order[i]] = ((t < max) && (cmp == 0)) ? t : -1;
 		}
+	}
+
+	/**
+	 * Compare the key against the SHA-1 at the specified table position.
+	 * If we are not memory mapped, the scratch buffer is used to read the
+	 * table entry.
+	 */
+	private int compareAt(int index, byte[] key, byte[] scratch) throws IOException
+	{
+		if (map != null) return map.compare(shaPosition(index), key, 0, 20);
 
-		// Sanity check: make sure we read the right index
-		if (!Hex.equals(sha1bytes, sha1)) {
-			throw new IOException("SHA1 mismatch");
+		readBytes(shaPosition(index), scratch);
+		return Hex.compare(key, scratch);
+	}
+
+	/**
+	 * Merge sort the range of request indexes by their SHA-1s
+	 */
+	private static void sortRequests(byte[][] sha1s, int[] order, int from, int to, int[] scratch)
+	{
+		if (to - from < 2) return;
+
+		if (to - from <= 8) {
+			// Insertion sort for small ranges
+			for (int i = from + 1; i < to; ++i) {
+				int v = order[i];
+				int j = i;
+				while ((j > from) && (Hex.compare(sha1s[order[j - 1]], sha1s[v]) > 0)) {
+					order[j] = order[j - 1];
+					--j;
+				}
+				order[j] = v;
+			}
+			return;
 		}
 
-		return new Record(sha1, offset, crc);
+		int mid = (from + to) >>> 1;
+		sortRequests(sha1s, order, from, mid, scratch);
+		sortRequests(sha1s, order, mid, to, scratch);
+
+		int i = from, j = mid, k = 0;
+		while ((i < mid) && (j < to)) {
+			if (Hex.compare(sha1s[order[i]], sha1s[order[j]]) <= 0) {
+				scratch[k++] = order[i++];
+			} else {
+				scratch[k++] = order[j++];
+			}
+		}
+		while (i < mid) scratch[k++] = order[i++];
+		while (j < to) scratch[k++] = order[j++];
+		System.arraycopy(scratch, 0, order, from, k);
 	}
 
 	/**
@@ -464,35 +735,12 @@ public class IndexReader
 	{
 		byte[] sha1 = new byte[20];
 
-		if (version == 1) {
-			System.out.println("Version 1:");
-
-			file.seek(offsetStart);
-			for (int i = 0; i < size; ++i) {
-				int offset = file.readInt();
-				file.read(sha1);
-
-				System.out.println(String.format("%d: %s %d", i, Hex.toString(sha1), offset));
-			}
-		} else {
-			System.out.println("Version 2:");
-
-			for (int i = 0; i < size; ++i) {
-				file.seek(offsetPack + (long)i * 4);
-				int off = file.readInt();
-				long offset;
-
-				if (off < 0) {
-					file.seek(offset64Pack + (long)(off & 0x7FFFFFFF) * 8);
-					offset = file.readLong();
-				} else {
-					offset = off;
-				}
+		System.out.println("Version " + version + ":");
+		for (int i = 0; i < size; ++i) {
+			getSHA1(i, sha1);
+			long offset = getOffset(i);
 
-				file.seek(offsetStart + (long)i * 20);
-				file.read(sha1);
-				System.out.println(String.format("%d: %s %d", i, Hex.toString(sha1), offset));
-			}
+			System.out.println(String.format("%d: %s %d", i, Hex.toString(sha1), offset));
 		}
 	}
 
@@ -504,39 +752,10 @@ public class IndexReader
 	{
 		Record[] ret = new Record[size];
 
-		if (version == 1) {
-			file.seek(offsetStart);
-
-			for (int i = 0; i < size; ++i) {
-				int offset = file.readInt();
-				byte[] sha1 = new byte[20];
-				file.read(sha1);
-				ret[i] = new Record(sha1, offset, 0);
-			}
-
-		} else {
-			file.seek(offsetStart);
-			for (int i = 0; i < size; ++i) {
-				byte[] sha1 = new byte[20];
-				file.read(sha1);
-				ret[i] = new Record(sha1, 0, 0);
-			}
-			for (int i = 0; i < size; ++i) {
-				int crc = file.readInt();
-				ret[i] = new Record(ret[i].sha1, 0, crc);
-			}
-			for (int i = 0; i < size; ++i) {
-				int offset = file.readInt();
-				ret[i] = new Record(ret[i].sha1, offset, ret[i].crc);
-			}
-			for (int i = 0; i < size; ++i) {
-				long offset = ret[i].offset;
-				if (offset < 0) {
-					file.seek(offset64Pack + (long)(offset & 0x7FFFFFFF) * 8);
-					offset = file.readLong();
-					ret[i] = new Record(ret[i].sha1, offset, ret[i].crc);
-				}
-			}
+		for (int i = 0; i < size; ++i) {
+			byte[] sha1 = new byte[20];
+			getSHA1(i, sha1);
+			ret[i] = new Record(sha1, getOffset(i), getCRC(i));
 		}
 
 		return ret;
@@ -0,0 +1,259 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.common.ValidateResult;
+import com.chaosinmotion.git.test.utils.ChunkTable;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * This reads the multi-pack-index file, which GIT writes to
+ * '.git/objects/pack/multi-pack-index' to index the objects in many pack
+ * files at once. Rather than searching the index of each pack file in turn,
+ * a single lookup gives us the pack file containing the object and the
+ * offset of the object in that pack.
+ *
+ * https://git-scm.com/docs/gitformat-pack#_multi_pack_index_midx_files_have_the_following_format
+ *
+ * Packs are identified by their position in the sorted list of pack index
+ * names stored in the file. The file is memory mapped and never modified,
+ * so this may be shared across threads.
+ */
+public class MultiPackIndex
+{
+	private static final int SIGNATURE = 0x4d494458;		// "MIDX"
+
+	private static final int PNAM = ChunkTable.id("PNAM");
+	private static final int OIDF = ChunkTable.id("OIDF");
+	private static final int OIDL = ChunkTable.id("OIDL");
+	private static final int OOFF = ChunkTable.id("OOFF");
+	private static final int LOFF = ChunkTable.id("LOFF");
+
+	private static final int LARGE_OFFSET = 0x80000000;
+
+	private final MappedFile map;
+	private final String[] packNames;
+	private final int[] fanout;
+	private final int count;
+	private final long oidl;
+	private final long ooff;
+	private final long loff;		// -1 if absent
+
+	/**
+	 * Open the multi-pack-index in the specified pack directory
+	 * @param packDir The '.git/objects/pack' directory
+	 * @return The multi-pack-index, or null if there is none
+	 * @throws IOException
+	 */
+	public static MultiPackIndex open(File packDir) throws IOException
+	{
+		File f = new File(packDir, "multi-pack-index");
+		if (!f.isFile()) return null;
+		return new MultiPackIndex(f);
+	}
+
+	/**
+	 * Open and memory map the multi-pack-index file
+	 * @param f The multi-pack-index file
+	 * @throws IOException
+	 */
+	public MultiPackIndex(File f) throws IOException
+	{
+		map = new MappedFile(f);
+
+		/*
+		 *	Header: signature, version, hash version, chunk count, number
+		 * 	of base files and the number of packs.
+		 */
+
+		if (map.getInt(0) != SIGNATURE) {
+			throw new IOException("Invalid multi-pack-index header");
+		}
+		if (map.get(4) != 1) {
+			throw new IOException("Unsupported multi-pack-index version " + map.get(4));
+		}
+		if (map.get(5) != 1) {
+			throw new IOException("Unsupported multi-pack-index hash version " + map.get(5));
+		}
+		if (map.get(7) != 0) {
+			throw new IOException("Incremental multi-pack-index files are not supported");
+		}
+		int packCount = map.getInt(8);
+		if (packCount < 0) {
+			throw new IOException("Invalid multi-pack-index pack count");
+		}
+
+		ChunkTable chunks = new ChunkTable(map, 12, map.get(6));
+
+		/*
+		 *	The pack names are a list of null terminated strings
+		 */
+
+		long pnam = chunks.getOffset(PNAM);
+		if (pnam == -1) throw new IOException("Missing chunk PNAM");
+		long end = pnam + chunks.getLength(PNAM);
+
+		packNames = new String[packCount];
+		long pos = pnam;
+		for (int i = 0; i < packCount; ++i) {
+			long start = pos;
+			while (map.get(pos) != 0) {
+				if (++pos >= end) throw new IOException("Invalid multi-pack-index pack names");
+			}
+			byte[] name = new byte[(int)(pos - start)];
+			map.get(start, name, 0, name.length);
+			packNames[i] = new String(name, StandardCharsets.UTF_8);
+			++pos;
+		}
+
+		/*
+		 *	Read the fanout into memory, and locate the other chunks
+		 */
+
+		long oidf = chunks.require(OIDF, 256 * 4);
+		fanout = new int[256];
+		for (int i = 0; i < 256; ++i) {
+			fanout[i] = map.getInt(oidf + i * 4);
+			if ((i > 0) && (fanout[i] < fanout[i - 1])) {
+				throw new IOException("Invalid multi-pack-index fanout");
+			}
+		}
+		count = fanout[255];
+
+		oidl = chunks.require(OIDL, (long)count * 20);
+		ooff = chunks.require(OOFF, (long)count * 8);
+		loff = chunks.getOffset(LOFF);
+	}
+
+	/**
+	 * The number of pack files covered by this index
+	 * @return The pack count
+	 */
+	public int getPackCount()
+	{
+		return packNames.length;
+	}
+
+	/**
+	 * The name of the index file of a pack covered by this index, such as
+	 * 'pack-(sha).idx'. The pack file has the same name with the extension
+	 * '.pack'.
+	 * @param packId The pack ID
+	 * @return The index file name
+	 */
+	public String getPackName(int packId)
+	{
+		return packNames[packId];
+	}
+
+	/**
+	 * The number of objects in the index
+	 * @return The object count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Find the position of the object with the specified SHA-1
+	 * @param sha1 The 20 byte SHA-1 of the object
+	 * @return The position of the object, or -1 if not found
+	 * @throws IOException
+	 */
+	public int findPosition(byte[] sha1) throws IOException
+	{
+		int index = 0xFF & sha1[0];
+		int min = (index == 0) ? 0 : fanout[index - 1];
+		int max = fanout[index];
+
+		while (min < max) {
+			int mid = (min + max) >>> 1;
+			int cmp = map.compare(oidl + (long)mid * 20, sha1, 0, 20);
+			if (cmp == 0) return mid;
+			if (cmp < 0) {
+				max = mid;
+			} else {
+				min = mid + 1;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Copy the SHA-1 of the object at the specified position
+	 * @param pos The position of the object
+	 * @param sha1 A 20 byte buffer to copy into
+	 * @throws IOException
+	 */
+	public void getSHA1(int pos, byte[] sha1) throws IOException
+	{
+		map.get(oidl + (long)pos * 20, sha1, 0, 20);
+	}
+
+	/**
+	 * The pack containing the object at the specified position. If an
+	 * object is in more than one pack, this is the pack GIT chose.
+	 * @param pos The position of the object
+	 * @return The pack ID
+	 * @throws IOException
+	 */
+	public int getPackId(int pos) throws IOException
+	{
+		int id = map.getInt(ooff + (long)pos * 8);
+		if ((id < 0) || (id >= packNames.length)) {
+			throw new IOException("Invalid multi-pack-index pack ID " + id);
+		}
+		return id;
+	}
+
+	/**
+	 * The offset of the object at the specified position in its pack file
+	 * @param pos The position of the object
+	 * @return The offset of the object in its pack file
+	 * @throws IOException
+	 */
+	public long getOffset(int pos) throws IOException
+	{
+		int offset = map.getInt(ooff + (long)pos * 8 + 4);
+		if ((offset & LARGE_OFFSET) == 0) return offset;
+
+		if (loff == -1) throw new IOException("Missing chunk LOFF");
+		return map.getLong(loff + (long)(offset & ~LARGE_OFFSET) * 8);
+	}
+
+	/**
+	 * Validates the checksum at the end of the multi-pack-index file.
+	 * @param f The multi-pack-index file
+	 * @return The validation state
+	 * @throws IOException
+	 */
+	public static ValidateResult validate(File f) throws IOException,
+			NoSuchAlgorithmException
+	{
+		if (!f.exists()) return ValidateResult.NOT_FOUND;
+
+		try (MappedFile map = new MappedFile(f)) {
+			return map.verifyChecksum() ? ValidateResult.VALID : ValidateResult.INVALID;
+		}
+	}
+
+	public void dump() throws IOException
+	{
+		System.out.println("Packs: " + packNames.length);
+		for (int i = 0; i < packNames.length; ++i) {
+			System.out.println("    " + i + ": " + packNames[i]);
+		}
+
+		System.out.println("Objects: " + count);
+		byte[] sha1 = new byte[20];
+		for (int i = 0; i < count; ++i) {
+			getSHA1(i, sha1);
+			System.out.println(Hex.toString(sha1) + " " + getPackId(i) + " " + getOffset(i));
+		}
+	}
+}
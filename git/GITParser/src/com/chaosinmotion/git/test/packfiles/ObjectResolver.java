@@ -0,0 +1,456 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.common.ObjectInfo;
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.RandomAccess;
+import com.chaosinmotion.git.test.utils.RandomAccessByteArray;
+import com.chaosinmotion.git.test.utils.RandomAccessMappedFile;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.zip.DataFormatException;
+
+/**
+ * This resolves objects stored in a pack file, applying delta chains as
+ * needed to reconstruct the original object.
+ *
+ * Resolving a delta requires first resolving its base, which may itself be a
+ * delta. Since many objects in a pack tend to share the same bases (think of
+ * successive versions of the same file), we hold on to the bases we resolve
+ * in a DeltaBaseCache, so that walking a history of related objects does not
+ * repeatedly rebuild the same chain.
+ *
+ * Delta chains are walked iteratively rather than recursively, so deep
+ * chains (such as those produced by `git gc --aggressive`) do not consume
+ * stack, and the deltas are applied between two reusable buffers.
+ *
+ * Objects too large to hold in memory can instead be streamed to an output
+ * stream, with intermediate results spilled to temporary files.
+ *
+ * The resolver keeps the index and pack reader open, and is meant to be
+ * reused across many lookups. If both readers are memory mapped, the
+ * resolver may be used from multiple threads.
+ */
+public class ObjectResolver
+{
+	// Largest array we can allocate, and longest chain we will follow
+	private static final long MAX_ARRAY = Integer.MAX_VALUE - 8;
+	private static final int MAX_CHAIN = 10000;
+
+	private final IndexReader index;
+	private final PackReader pack;
+	private final DeltaBaseCache cache;
+	private volatile ReverseIndex reverseIndex;		// Built on demand
+
+	// Used when streaming objects too large to hold in memory
+	private int streamBufferSize = 64 * 1024;
+	private File tempDirectory;
+
+	/**
+	 * Construct a resolver with a default sized delta base cache
+	 * @param ir The index reader, used to look up REF_DELTA bases
+	 * @param pr The pack reader the objects are read from
+	 */
+	public ObjectResolver(IndexReader ir, PackReader pr)
+	{
+		this(ir, pr, new DeltaBaseCache());
+	}
+
+	/**
+	 * Construct a resolver with the specified delta base cache. The cache
+	 * must not be shared with resolvers for other pack files.
+	 * @param ir The index reader, used to look up REF_DELTA bases
+	 * @param pr The pack reader the objects are read from
+	 * @param cache The delta base cache
+	 */
+	public ObjectResolver(IndexReader ir, PackReader pr, DeltaBaseCache cache)
+	{
+		this.index = ir;
+		this.pack = pr;
+		this.cache = cache;
+	}
+
+	/**
+	 * The delta base cache. This can be used to read the hit and miss
+	 * counters.
+	 * @return The cache used by this resolver
+	 */
+	public DeltaBaseCache getCache()
+	{
+		return cache;
+	}
+
+	/**
+	 * Set the size of the buffers used when streaming an object. This bounds
+	 * the amount of heap used by the streaming resolve method, regardless of
+	 * the size of the object being resolved.
+	 * @param size The buffer size in bytes
+	 */
+	public void setStreamBufferSize(int size)
+	{
+		streamBufferSize = size;
+	}
+
+	/**
+	 * Set the directory in which intermediate objects are spilled when
+	 * streaming an object. If null (the default), the system temporary
+	 * directory is used.
+	 * @param dir The directory for temporary files
+	 */
+	public void setTempDirectory(File dir)
+	{
+		tempDirectory = dir;
+	}
+
+	/**
+	 * Resolve the object with the given SHA-1
+	 * @param sha1 The SHA-1 as a hex string
+	 * @return The resolved object, or null if the object is not in this pack
+	 */
+	public ResolvedObject resolve(String sha1) throws IOException,
+			DataFormatException
+	{
+		return resolve(Hex.toByteArray(sha1));
+	}
+
+	/**
+	 * Resolve the object with the given SHA-1
+	 * @param sha1 The 20 byte SHA-1
+	 * @return The resolved object, or null if the object is not in this pack
+	 */
+	public ResolvedObject resolve(byte[] sha1) throws IOException,
+			DataFormatException
+	{
+		int pos = index.findPosition(sha1);
+		if (pos == -1) return null;
+
+		return resolve(index.getOffset(pos));
+	}
+
+	/**
+	 * Resolve the object whose header is at the given offset in the pack
+	 * file. If this is a delta object, this walks down the delta chain until
+	 * it finds the base object (or a base in our cache), then applies the
+	 * deltas back up the chain.
+	 *
+	 * The returned data may be shared with the delta base cache, and must
+	 * not be modified.
+	 * @param offset The offset of the object header in the pack file
+	 * @return The resolved object
+	 */
+	public ResolvedObject resolve(long offset) throws IOException,
+			DataFormatException
+	{
+		/*
+		 *	Walk down the chain iteratively, collecting the deltas we need
+		 * 	to apply, until we find a base object. Along the way we track the
+		 * 	largest intermediate result so we can size our buffers.
+		 */
+
+		ArrayList<Delta> chain = new ArrayList<>();
+		ResolvedObject base;
+		long pos = offset;
+		long maxSize = 0;
+
+		for (;;) {
+			base = cache.get(pos);
+			if (base != null) break;
+
+			PackReader.ObjectHeader h = pack.readObjectHeader(pos);
+			if ((h.type != ObjectType.OFSDelta) && (h.type != ObjectType.REFDelta)) {
+				// This is not a delta, so we can simply read the data
+				base = new ResolvedObject(h.type, readData(h));
+				if (!chain.isEmpty()) cache.put(pos, base);
+				break;
+			}
+
+			Delta d = pack.readDeltaData(h);
+			if (!chain.isEmpty() && (d.resultSize > maxSize)) {
+				maxSize = d.resultSize;
+			}
+			chain.add(d);
+			pos = getBaseOffset(d);
+
+			if (chain.size() > MAX_CHAIN) {
+				throw new IOException("Delta chain too long");
+			}
+		}
+
+		if (chain.isEmpty()) return base;
+
+		/*
+		 *	Apply the deltas from the bottom of the chain up. Intermediate
+		 * 	results ping-pong between two buffers sized for the largest
+		 * 	intermediate object; only the final result gets its own array.
+		 */
+
+		Delta top = chain.get(0);
+		if (top.resultSize > MAX_ARRAY) {
+			throw new IOException("Object too large to resolve in memory");
+		}
+		if (maxSize > MAX_ARRAY) {
+			throw new IOException("Delta base too large to resolve in memory");
+		}
+
+		byte[] ping = null;
+		byte[] pong = null;
+		byte[] src = base.data;
+		int srcLength = src.length;
+
+		for (int i = chain.size() - 1; i > 0; --i) {
+			if (ping == null) {
+				ping = new byte[(int)maxSize];
+				pong = (i > 1) ? new byte[(int)maxSize] : null;
+			}
+			byte[] dst = (src == ping) ? pong : ping;
+			srcLength = chain.get(i).apply(src, srcLength, dst);
+			src = dst;
+		}
+
+		byte[] result = new byte[(int)top.resultSize];
+		top.apply(src, srcLength, result);
+
+		return new ResolvedObject(base.type, result);
+	}
+
+	/**
+	 * Resolve the object whose header is at the given offset in the pack
+	 * file, writing the contents to the output stream. Unlike the in-memory
+	 * version of resolve, this can handle objects larger than the heap (or
+	 * larger than 2GB): the base object and each intermediate result are
+	 * spilled to temporary files, which are memory mapped to serve as the
+	 * base for the next delta in the chain. Heap use is bounded by the
+	 * stream buffer size and the size of the delta instructions.
+	 * @param offset The offset of the object header in the pack file
+	 * @param out The stream to write the resolved object to
+	 * @return The type of the resolved object
+	 */
+	public ObjectType resolve(long offset, OutputStream out) throws IOException,
+			DataFormatException
+	{
+		/*
+		 *	Walk down the chain, as with our in-memory resolve.
+		 */
+
+		ArrayList<Delta> chain = new ArrayList<>();
+		ResolvedObject cached;
+		PackReader.ObjectHeader baseHeader = null;
+		long pos = offset;
+
+		for (;;) {
+			cached = cache.get(pos);
+			if (cached != null) break;
+
+			PackReader.ObjectHeader h = pack.readObjectHeader(pos);
+			if ((h.type != ObjectType.OFSDelta) && (h.type != ObjectType.REFDelta)) {
+				baseHeader = h;
+				break;
+			}
+
+			Delta d = pack.readDeltaData(h);
+			chain.add(d);
+			pos = getBaseOffset(d);
+
+			if (chain.size() > MAX_CHAIN) {
+				throw new IOException("Delta chain too long");
+			}
+		}
+
+		ObjectType type = (cached != null) ? cached.type : baseHeader.type;
+
+		if (chain.isEmpty()) {
+			if (cached != null) {
+				out.write(cached.data);
+			} else {
+				pack.readObjectData(baseHeader, out);
+			}
+			return type;
+		}
+
+		/*
+		 *	Get the base. Small bases are read into memory; larger ones are
+		 * 	inflated into a temporary file.
+		 */
+
+		byte[] buffer = new byte[streamBufferSize];
+		RandomAccess in = null;
+		File src = null;
+		File dst = null;
+
+		try {
+			if (cached != null) {
+				in = new RandomAccessByteArray(cached.data);
+			} else if (baseHeader.size <= streamBufferSize) {
+				in = new RandomAccessByteArray(readData(baseHeader));
+			} else {
+				src = createTempFile();
+				try (OutputStream os = new BufferedOutputStream(new FileOutputStream(src), streamBufferSize)) {
+					pack.readObjectData(baseHeader, os);
+				}
+				in = new RandomAccessMappedFile(src);
+			}
+
+			/*
+			 *	Apply the intermediate deltas, ping-ponging between temporary
+			 * 	files.
+			 */
+
+			for (int i = chain.size() - 1; i > 0; --i) {
+				Delta d = chain.get(i);
+				if (in.length() != d.baseSize) {
+					throw new IOException("Base size mismatch");
+				}
+
+				dst = createTempFile();
+				try (OutputStream os = new BufferedOutputStream(new FileOutputStream(dst), streamBufferSize)) {
+					d.apply(in, os, buffer);
+				}
+
+				in.close();
+				deleteTempFile(src);
+				src = dst;
+				dst = null;
+				in = new RandomAccessMappedFile(src);
+			}
+
+			/*
+			 *	And the final delta goes to our caller
+			 */
+
+			Delta top = chain.get(0);
+			if (in.length() != top.baseSize) {
+				throw new IOException("Base size mismatch");
+			}
+			if (top.apply(in, out, buffer) != top.resultSize) {
+				throw new IOException("Result size mismatch");
+			}
+
+			return type;
+		}
+		finally {
+			if (in != null) in.close();
+			deleteTempFile(src);
+			deleteTempFile(dst);
+		}
+	}
+
+	/**
+	 * Find the size of the object whose header is at the given offset in the
+	 * pack file. Unlike getInfo, this reads only the object header, and for
+	 * a delta the start of its delta data, so it is cheap enough to call
+	 * before deciding how to read an object.
+	 * @param offset The offset of the object header in the pack file
+	 * @return The size of the resolved object
+	 */
+	public long getSize(long offset) throws IOException, DataFormatException
+	{
+		PackReader.ObjectHeader h = pack.readObjectHeader(offset);
+		if ((h.type == ObjectType.OFSDelta) || (h.type == ObjectType.REFDelta)) {
+			return pack.readDeltaHeader(h).resultSize;
+		}
+		return h.size;
+	}
+
+	/**
+	 * Find the type, size and delta depth of the object whose header is at
+	 * the given offset in the pack file, without resolving it. This reads
+	 * the object header, and for a delta only the start of the delta data,
+	 * for each object down the delta chain.
+	 *
+	 * The first call builds a reverse index of the pack file, which is used
+	 * to find the size of each object on disk.
+	 * @param offset The offset of the object header in the pack file
+	 * @return The object information
+	 */
+	public ObjectInfo getInfo(long offset) throws IOException,
+			DataFormatException
+	{
+		PackReader.ObjectHeader h = pack.readObjectHeader(offset);
+		long size = h.size;
+		int depth = 0;
+
+		while ((h.type == ObjectType.OFSDelta) || (h.type == ObjectType.REFDelta)) {
+			DeltaHeader d = pack.readDeltaHeader(h);
+			if (depth == 0) size = d.resultSize;
+			if (++depth > MAX_CHAIN) {
+				throw new IOException("Delta chain too long");
+			}
+			h = pack.readObjectHeader(getBaseOffset(d.offset, d.sha));
+		}
+
+		ReverseIndex rev = getReverseIndex();
+		int pos = rev.findOffset(offset);
+		long diskSize = (pos == -1) ? 0 : rev.getEntryLength(pos);
+
+		return new ObjectInfo(h.type, size, ObjectInfo.Storage.PACKED, depth, diskSize);
+	}
+
+	private ReverseIndex getReverseIndex() throws IOException
+	{
+		ReverseIndex rev = reverseIndex;
+		if (rev == null) {
+			synchronized (this) {
+				rev = reverseIndex;
+				if (rev == null) {
+					rev = ReverseIndex.load(index, pack);
+					reverseIndex = rev;
+				}
+			}
+		}
+		return rev;
+	}
+
+	private File createTempFile() throws IOException
+	{
+		return File.createTempFile("delta", ".tmp", tempDirectory);
+	}
+
+	/**
+	 * Delete our temporary file. Some platforms will not delete a file that
+	 * is still memory mapped, in which case we clean up on exit.
+	 */
+	private static void deleteTempFile(File f)
+	{
+		if ((f != null) && !f.delete()) {
+			f.deleteOnExit();
+		}
+	}
+
+	/**
+	 * Read the inflated contents of a non-delta object. The object is
+	 * inflated directly into an array presized from the object header.
+	 */
+	private byte[] readData(PackReader.ObjectHeader h) throws IOException,
+			DataFormatException
+	{
+		if (h.size > MAX_ARRAY) {
+			throw new IOException("Object too large to resolve in memory");
+		}
+
+		return pack.readObjectBytes(h);
+	}
+
+	/**
+	 * Find the offset of the base object of the delta provided.
+	 */
+	private long getBaseOffset(Delta d) throws IOException
+	{
+		return getBaseOffset(d.offset, d.sha);
+	}
+
+	private long getBaseOffset(long offset, byte[] sha) throws IOException
+	{
+		if (sha == null) return offset;
+
+		int pos = index.findPosition(sha);
+		if (pos == -1) {
+			throw new IOException("Delta base " + Hex.toString(sha) + " not found");
+		}
+		return index.getOffset(pos);
+	}
+}
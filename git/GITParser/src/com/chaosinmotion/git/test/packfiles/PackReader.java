@@ -3,11 +3,14 @@ package com.chaosinmotion.git.test.packfiles;
 import com.chaosinmotion.git.test.common.ObjectType;
 import com.chaosinmotion.git.test.common.ValidateResult;
 import com.chaosinmotion.git.test.utils.Hex;
-import com.chaosinmotion.git.test.utils.Stream;
+import com.chaosinmotion.git.test.utils.InflaterPool;
+import com.chaosinmotion.git.test.utils.MappedFile;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
@@ -18,14 +21,31 @@ import java.util.zip.Inflater;
  * https://shafiul.github.io//gitbook/7_the_packfile.html
  *
  * https://git-scm.com/docs/gitformat-pack
+ *
+ * The pack file can optionally be memory mapped. In that mode every read
+ * works from an absolute offset with no shared file pointer, so a single
+ * open pack reader can be used by multiple threads at once. When not mapped
+ * we seek a shared RandomAccessFile, so the reader must not be shared.
+ *
+ * Reads can optionally be verified against the CRCs stored in a version 2
+ * index file. In that mode the raw bytes of each entry are checked before
+ * they are inflated, so a corrupt object is rejected rather than quietly
+ * inflated (or worse, used as a delta base). This is far cheaper than
+ * validating the checksum of the entire pack file.
  */
 
 public class PackReader
 {
-	private RandomAccessFile file;
+	private final File packFile;
+	private RandomAccessFile file;	// Set if we are not memory mapped
+	private MappedFile map;			// Set if we are memory mapped
 	private int version;
 	private int objectCount;
 
+	// Set if we verify the CRC of each object before reading it
+	private volatile IndexReader verifyIndex;
+	private volatile ReverseIndex reverseIndex;
+
 	/**
 	 * This is the representation of the header of the packed object within
 	 * this file.
@@ -64,28 +84,131 @@ public class PackReader
 	 */
 	public PackReader(File f) throws IOException
 	{
-		file = new RandomAccessFile(f, "r");
+		this(f, false);
+	}
+
+	/**
+	 * Opens the pack file for reading, optionally memory mapping the file
+	 * @param f The file reference
+	 * @param mapped True if the pack file should be memory mapped
+	 * @throws IOException
+	 */
+	public PackReader(File f, boolean mapped) throws IOException
+	{
+		int h;
+
+		packFile = f;
 
 		/*
 		 *	Read the header
 		 */
 
-		int h = file.readInt();
+		if (mapped) {
+			map = new MappedFile(f);
+			h = map.getInt(0);
+			version = map.getInt(4);
+			objectCount = map.getInt(8);
+		} else {
+			file = new RandomAccessFile(f, "r");
+			h = file.readInt();
+			version = file.readInt();
+			objectCount = file.readInt();
+		}
+
 		if (h != 0x5041434b) {			// PACK
+			close();
 			throw new IOException("Invalid PACK file header");
 		}
 
-		version = file.readInt();
-		objectCount = file.readInt();
-
 		if ((version < 2) || (version > 3)) {
+			close();
 			throw new IOException("Unsupported pack file version " + version);
 		}
 	}
 
+	/**
+	 * The number of objects stored in this pack file
+	 * @return The object count from the pack header
+	 */
+	public int getObjectCount()
+	{
+		return objectCount;
+	}
+
+	/**
+	 * The pack file this reads
+	 * @return The pack file
+	 */
+	public File getFile()
+	{
+		return packFile;
+	}
+
+	/**
+	 * The length of the pack file in bytes
+	 * @return The file length
+	 * @throws IOException
+	 */
+	public long getLength() throws IOException
+	{
+		return (map != null) ? map.length() : file.length();
+	}
+
+	/**
+	 * The SHA-1 checksum stored at the end of the pack file. This is not
+	 * verified; see validate.
+	 * @return The 20 byte checksum
+	 * @throws IOException
+	 */
+	public byte[] getChecksum() throws IOException
+	{
+		long pos = getLength() - 20;
+		if (pos < 12) throw new IOException("Unexpected EOF");
+
+		byte[] sha = new byte[20];
+		if (map == null) file.seek(pos);
+		read(pos, sha);
+		return sha;
+	}
+
 	public void close() throws IOException
 	{
-		file.close();
+		if (file != null) file.close();
+	}
+
+	/**
+	 * Turn on CRC verification of every object read from this pack file.
+	 * This builds a reverse index so we can find where each object ends.
+	 * @param index The index for this pack file, which must be a version 2
+	 *              index, or null to turn verification off
+	 * @throws IOException
+	 */
+	public void setVerifyIndex(IndexReader index) throws IOException
+	{
+		if (index == null) {
+			reverseIndex = null;
+			verifyIndex = null;
+			return;
+		}
+
+		if (index.getVersion() < 2) {
+			throw new IOException("Version 1 index files do not contain CRCs");
+		}
+		if (index.getCount() != objectCount) {
+			throw new IOException("Index does not match pack file");
+		}
+
+		reverseIndex = ReverseIndex.load(index, this);
+		verifyIndex = index;
+	}
+
+	/**
+	 * Returns true if reads are verified against the index CRCs
+	 * @return True if verification is turned on
+	 */
+	public boolean isVerified()
+	{
+		return reverseIndex != null;
 	}
 
 
@@ -164,18 +287,19 @@ public class PackReader
 		int shift;
 		byte type;
 		long size = 0;
+		long pos = headerOffset;
 
 		/*
 		 *	Seek to the start of the header. This contains the type and size of
 		 * 	the uncompressed data associated with this
 		 */
-		file.seek(headerOffset);
+		if (map == null) file.seek(pos);
 
 		/*
 		 *	Read the first byte
 		 */
 
-		ch = file.read();
+		ch = read(pos++);
 		if (ch == -1) throw new IOException("Unexpected EOF");
 
 		type = (byte)(0x07 & (ch >> 4));
@@ -187,15 +311,13 @@ public class PackReader
 
 		shift = 4;
 		while ((ch & 0x80) != 0) {
-			ch = file.read();
+			ch = read(pos++);
 			if (ch == -1) throw new IOException("Unexpected EOF");
 			size |= (long)(ch & 0x7f) << shift;
 			shift += 7;
 		}
 
-		long offset = file.getFilePointer();
-
-		return new ObjectHeader(ObjectType.fromByte(type), headerOffset, offset, size);
+		return new ObjectHeader(ObjectType.fromByte(type), headerOffset, pos, size);
 	}
 
 	/**
@@ -209,26 +331,33 @@ public class PackReader
 	 */
 	public void readObjectData(ObjectHeader header, OutputStream os) throws DataFormatException, IOException
 	{
-		/*
-		 *	Seek to the offset
-		 */
-
-		file.seek(header.dataPos);
-
-		/*
-		 *	Track where we are, so we can use the inflater to backtrack the
-		 * 	file pointer
-		 */
-
+		verify(header);
 		if (header.type == ObjectType.OFSDelta) {
-			copyData(header.size,os);
+			copyData(header.dataPos,header.size,os);
 		} else if (header.type == ObjectType.REFDelta) {
-			copyData(header.size,os);
+			copyData(header.dataPos,header.size,os);
 		} else {
-			decompressData(os);
+			decompressData(header.dataPos,header.size,os);
 		}
 	}
 
+	/**
+	 * This reads the data associated with a non-delta object header,
+	 * inflating it directly into an array sized from the header. This is
+	 * considerably faster than reading through an output stream.
+	 * @param header The header of the object to read
+	 * @return The inflated object contents
+	 * @throws IOException
+	 */
+	public byte[] readObjectBytes(ObjectHeader header) throws DataFormatException, IOException
+	{
+		if ((header.type == ObjectType.OFSDelta) || (header.type == ObjectType.REFDelta)) {
+			throw new IOException("Delta objects must be read with readDeltaData");
+		}
+		verify(header);
+		return inflate(header.dataPos, header.size);
+	}
+
 	/**
 	 * If this is of type OFS_DELTA or REF_DELTA, this will read the delta
 	 * data and return it. The delta data can be used to transform the specified
@@ -240,44 +369,262 @@ public class PackReader
 	public Delta readDeltaData(ObjectHeader header) throws IOException,
 			DataFormatException
 	{
-		file.seek(header.dataPos);
+		verify(header);
 
-		if (header.type == ObjectType.OFSDelta) {
-			// The offset is given relative to the current object
-			long offset = header.headerPos - Stream.readAltSizeEncoded(file);
+		BaseReference ref = readBaseReference(header);
+		byte[] data = inflate(ref.dataPos, header.size);
+		return (ref.sha == null) ? new Delta(ref.offset, data) : new Delta(ref.sha, data);
+	}
 
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			decompressData(baos);
-			baos.close();
-			return new Delta(offset, baos.toByteArray());
+	/**
+	 * If this is of type OFS_DELTA or REF_DELTA, this reads the reference
+	 * to the base object and the base and result sizes at the start of the
+	 * delta data, without inflating the rest of the delta. This is much
+	 * cheaper than readDeltaData when all we want is the size of the object.
+	 *
+	 * Note that this does not verify the CRC of the object even if
+	 * verification is turned on, since that would require reading the
+	 * entire object.
+	 * @param header The header of the object to read
+	 * @return The delta header
+	 * @throws IOException
+	 */
+	public DeltaHeader readDeltaHeader(ObjectHeader header) throws IOException,
+			DataFormatException
+	{
+		BaseReference ref = readBaseReference(header);
 
-		} else if (header.type == ObjectType.REFDelta) {
-			byte[] sha = new byte[20];
-			if (sha.length != file.read(sha)) {
-				throw new IOException("Unexpected EOF");
+		/*
+		 *	The delta data starts with two size encoded integers, at most
+		 * 	ten bytes each. Inflate just enough to read them.
+		 */
+
+		byte[] data = new byte[(int)Math.min(20, header.size)];
+		int len = 0;
+
+		Inflater inflater = InflaterPool.acquire();
+		long inPos = ref.dataPos;
+		byte[] inBuffer = (map == null) ? new byte[inputWindow(data.length)] : null;
+		if (map == null) file.seek(inPos);
+
+		try {
+			inPos += fillInflater(inflater, inPos, inBuffer);
+			while ((len < data.length) && !inflater.finished()) {
+				len += inflater.inflate(data, len, data.length - len);
+				if (inflater.needsDictionary()) {
+					throw new IOException("ZLib dictionary unexpectedly asked for in header");
+				}
+				if ((len < data.length) && inflater.needsInput()) {
+					inPos += fillInflater(inflater, inPos, inBuffer);
+				}
+			}
+		}
+		finally {
+			InflaterPool.release(inflater);
+		}
+
+		int pos = 0;
+		long value = 0;
+		int shift = 0;
+		int ch;
+		do {
+			if (pos >= len) throw new IOException("Unexpected EOF");
+			ch = data[pos++] & 0xff;
+			value |= (long)(ch & 0x7f) << shift;
+			shift += 7;
+		} while ((ch & 0x80) != 0);
+		long baseSize = value;
+
+		value = 0;
+		shift = 0;
+		do {
+			if (pos >= len) throw new IOException("Unexpected EOF");
+			ch = data[pos++] & 0xff;
+			value |= (long)(ch & 0x7f) << shift;
+			shift += 7;
+		} while ((ch & 0x80) != 0);
+
+		return new DeltaHeader(ref.offset, ref.sha, baseSize, value);
+	}
+
+	/**
+	 * The reference to the base object at the start of a delta object
+	 */
+	private static class BaseReference
+	{
+		long offset;		// Set for OFS_DELTA
+		byte[] sha;			// Set for REF_DELTA
+		long dataPos;		// The start of the compressed delta data
+	}
+
+	private BaseReference readBaseReference(ObjectHeader header) throws IOException
+	{
+		BaseReference ref = new BaseReference();
+		long pos = header.dataPos;
+		if (map == null) file.seek(pos);
+
+		if (header.type == ObjectType.OFSDelta) {
+			/*
+			 *	The offset is given relative to the current object, using the
+			 * 	alternate size encoding. (See Stream.readAltSizeEncoded.)
+			 */
+
+			int ch = read(pos++);
+			if (ch == -1) throw new IOException("Unexpected EOF");
+			long rel = (ch & 0x7f);
+			while ((ch & 0x80) != 0) {
+				ch = read(pos++);
+				if (ch == -1) throw new IOException("Unexpected EOF");
+				rel = ((rel + 1) << 7) | (ch & 0x7f);
 			}
+			ref.offset = header.headerPos - rel;
 
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			decompressData(baos);
-			baos.close();
-			return new Delta(sha, baos.toByteArray());
+		} else if (header.type == ObjectType.REFDelta) {
+			ref.sha = new byte[20];
+			read(pos, ref.sha);
+			pos += ref.sha.length;
 
 		} else {
 			throw new IOException("Invalid delta type");
 		}
+
+		ref.dataPos = pos;
+		return ref;
 	}
 
-	private void copyData(long size, OutputStream os) throws IOException
+	/**
+	 * Compute the CRC32 of the raw bytes in the pack file. Given the offset
+	 * and entry length of an object, this is the CRC stored in the index.
+	 * @param offset The offset into the pack file
+	 * @param length The number of bytes to include
+	 * @return The CRC32 of the bytes
+	 * @throws IOException
+	 */
+	public int computeCRC(long offset, long length) throws IOException
+	{
+		long start = offset;
+		long end = offset + length;
+		CRC32 crc = new CRC32();
+
+		if (map != null) {
+			while (start < end) {
+				ByteBuffer b = map.slice(start, (int)Math.min(end - start, Integer.MAX_VALUE));
+				if (!b.hasRemaining()) throw new IOException("Unexpected EOF");
+				start += b.remaining();
+				crc.update(b);
+			}
+		} else {
+			byte[] buffer = new byte[(int)Math.min(length, MAX_WINDOW)];
+			file.seek(start);
+			while (start < end) {
+				int len = file.read(buffer, 0, (int)Math.min(end - start, buffer.length));
+				if (len <= 0) throw new IOException("Unexpected EOF");
+				crc.update(buffer, 0, len);
+				start += len;
+			}
+		}
+
+		return (int)crc.getValue();
+	}
+
+	/**
+	 * If verification is turned on, compute the CRC over the raw bytes of
+	 * the entry for this object, from the start of its header to the start
+	 * of the next object, and compare with the CRC in the index.
+	 */
+	private void verify(ObjectHeader header) throws IOException,
+			DataFormatException
+	{
+		ReverseIndex rev = reverseIndex;
+		IndexReader index = verifyIndex;
+		if ((rev == null) || (index == null)) return;
+
+		int pos = rev.findOffset(header.headerPos);
+		if (pos == -1) {
+			throw new DataFormatException("No object in index at offset " + header.headerPos);
+		}
+
+		int crc = computeCRC(header.headerPos, rev.getEntryLength(pos));
+		if (crc != index.getCRC(rev.getIndexPosition(pos))) {
+			throw new DataFormatException("CRC mismatch for object at offset " + header.headerPos);
+		}
+	}
+
+	/**
+	 * Allocate an array of the given size and inflate into it
+	 */
+	private byte[] inflate(long pos, long size) throws IOException,
+			DataFormatException
+	{
+		if (size > Integer.MAX_VALUE - 8) {
+			throw new IOException("Object too large to read into memory");
+		}
+
+		byte[] data = new byte[(int)size];
+		decompressData(pos, data);
+		return data;
+	}
+
+	/**
+	 * Copy the raw bytes of a packed entry, without inflating them. Given
+	 * the offset and entry length from the ReverseIndex, this copies an
+	 * entire object (header, base reference and compressed data) as it
+	 * would be written to another pack file.
+	 * @param offset The offset of the entry in the pack file
+	 * @param length The length of the entry
+	 * @param os The output stream to write to
+	 * @throws IOException
+	 */
+	public void copyEntry(long offset, long length, OutputStream os) throws IOException
+	{
+		if ((offset < 12) || (offset + length > getLength() - 20)) {
+			throw new IOException("Entry outside of the pack file");
+		}
+		copyData(offset, length, os);
+	}
+
+	/*
+	 *	Internal accessors. If we are memory mapped these read from the
+	 * 	absolute position given. Otherwise these read from the current file
+	 * 	pointer, which the caller must have already positioned at pos.
+	 */
+
+	private int read(long pos) throws IOException
+	{
+		if (map != null) return map.get(pos);
+		return file.read();
+	}
+
+	private void read(long pos, byte[] buffer) throws IOException
+	{
+		if (map != null) {
+			map.get(pos, buffer, 0, buffer.length);
+		} else if (buffer.length != file.read(buffer)) {
+			throw new IOException("Unexpected EOF");
+		}
+	}
+
+	private void copyData(long pos, long size, OutputStream os) throws IOException
 	{
 		byte[] buffer = new byte[1024];
-		long pos = 0;
 		long rlen;
 
-		while (pos < size) {
-			rlen = size - pos;
+		if (map == null) file.seek(pos);
+
+		long end = pos + size;
+		while (pos < end) {
+			rlen = end - pos;
 			if (rlen > buffer.length) rlen = buffer.length;
 
-			int len = file.read(buffer, 0, (int)rlen);
+			int len;
+			if (map != null) {
+				if (pos + rlen > map.length()) rlen = map.length() - pos;
+				if (rlen <= 0) break;
+				map.get(pos, buffer, 0, (int)rlen);
+				len = (int)rlen;
+			} else {
+				len = file.read(buffer, 0, (int)rlen);
+			}
 			if (len <= 0) break;
 			os.write(buffer, 0, len);
 
@@ -285,75 +632,175 @@ public class PackReader
 		}
 	}
 
-	private void decompressData(OutputStream os) throws IOException,
+	/**
+	 * Inflate the zlib stream starting at the specified position in the
+	 * pack file, writing the results to the output stream.
+	 * @param pos The offset to the start of the compressed data
+	 * @param size The inflated size given in the object header
+	 * @param os The output stream to write the inflated data to
+	 * @return The number of compressed bytes consumed
+	 */
+	private long decompressData(long pos, long size, OutputStream os) throws IOException,
 			DataFormatException
 	{
 		int rlen;
-		long curOffset = file.getFilePointer();
 
 		/*
 		 *	Now read the data. If this is a base object type, we inflate the
 		 * 	contents from our object. Note that we use the inflater object
-		 * 	explicitly so we can rewind our file pointer stream to the end
-		 * 	of the data block we just read.
+		 * 	explicitly so we can tell how many bytes of compressed data we
+		 * 	consumed.
 		 */
 
-		Inflater inflater = new Inflater();
-		byte[] inBuffer = new byte[1024];
-		byte[] outBuffer = new byte[1024];
-		boolean done = false;
+		Inflater inflater = InflaterPool.acquire();
+		byte[] inBuffer = (map == null) ? new byte[inputWindow(size)] : null;
+		byte[] outBuffer = new byte[(int)Math.max(1, Math.min(size, MAX_WINDOW))];
+		long inPos = pos;
 
-		/*
-		 *	Preload the inflater with the first block of data
-		 */
-		int len = file.read(inBuffer);
-		if (len <= 0) {
-			inflater.end();
-			throw new IOException("Unexpected EOF");
-		}
-		;
-		inflater.setInput(inBuffer, 0, len);
+		if (map == null) file.seek(pos);
+
+		try {
+			/*
+			 *	Preload the inflater with the first block of data
+			 */
+			inPos += fillInflater(inflater, inPos, inBuffer);
 
-		/*
-		 *	Now inflate the data
-		 */
-		while (!done) {
 			/*
-			 *	Keep decompressing until we run out of stuff to decomparess.
+			 *	Now inflate the data
 			 */
-			while (0 < (rlen = inflater.inflate(outBuffer))) {
-				os.write(outBuffer, 0, rlen);
-				if (inflater.finished()) {
-					done = true;
-					break;
+			while (!inflater.finished()) {
+				/*
+				 *	Keep decompressing until we run out of stuff to decompress.
+				 */
+				while (0 < (rlen = inflater.inflate(outBuffer))) {
+					os.write(outBuffer, 0, rlen);
+				}
+				if (inflater.finished()) break;
+
+				if (inflater.needsDictionary()) {
+					throw new IOException("ZLib dictionary unexpectedly asked for in header");
+				}
+
+				if (inflater.needsInput()) {
+					/*
+					 *	Inflater requested more data; the object is larger
+					 * 	than we guessed, so read bigger blocks.
+					 */
+					inBuffer = growWindow(inBuffer);
+					inPos += fillInflater(inflater, inPos, inBuffer);
 				}
 			}
 
-			if (inflater.needsDictionary()) {
-				inflater.end();
-				throw new IOException("ZLib dictionary unexpectedly asked for in header");
+			/*
+			 *	Now at this point we can interrogate the inflater to know how
+			 * 	many bytes we read in total.
+			 */
+
+			return inflater.getBytesRead();
+		}
+		finally {
+			InflaterPool.release(inflater);
+		}
+	}
+
+	/**
+	 * Inflate the zlib stream starting at the specified position in the
+	 * pack file directly into the array provided. The array must be sized
+	 * to the inflated size given in the object header; if the stream does
+	 * not inflate to exactly that size the pack file is corrupt.
+	 * @param pos The offset to the start of the compressed data
+	 * @param out The array to inflate into
+	 * @return The number of compressed bytes consumed
+	 */
+	private long decompressData(long pos, byte[] out) throws IOException,
+			DataFormatException
+	{
+		Inflater inflater = InflaterPool.acquire();
+		byte[] inBuffer = (map == null) ? new byte[inputWindow(out.length)] : null;
+		byte[] probe = null;
+		int outPos = 0;
+		long inPos = pos;
+
+		if (map == null) file.seek(pos);
+
+		try {
+			inPos += fillInflater(inflater, inPos, inBuffer);
+
+			while (!inflater.finished()) {
+				if (outPos < out.length) {
+					outPos += inflater.inflate(out, outPos, out.length - outPos);
+				} else {
+					/*
+					 *	Our array is full, but the stream has not ended. Make
+					 * 	sure there is nothing more than the end of stream.
+					 */
+					if (probe == null) probe = new byte[1];
+					if (inflater.inflate(probe) != 0) {
+						throw new DataFormatException("Object larger than its header size");
+					}
+				}
+				if (inflater.finished()) break;
+
+				if (inflater.needsDictionary()) {
+					throw new IOException("ZLib dictionary unexpectedly asked for in header");
+				}
+
+				if (inflater.needsInput()) {
+					inBuffer = growWindow(inBuffer);
+					inPos += fillInflater(inflater, inPos, inBuffer);
+				}
 			}
 
-			if (inflater.needsInput()) {
-				/*
-				 *	Inflater requested more data.
-				 */
-				len = file.read(inBuffer);
-				if (len <= 0) {
-					inflater.end();
-					throw new IOException("Unexpected EOF");
-				};
-				inflater.setInput(inBuffer, 0, len);
+			if (outPos != out.length) {
+				throw new DataFormatException("Object smaller than its header size");
 			}
+			return inflater.getBytesRead();
+		}
+		finally {
+			InflaterPool.release(inflater);
 		}
+	}
 
-		/*
-		 *	Now at this point we can interrogate the inflater to know how many
-		 * 	bytes we read in total. This tells us the proper offset into our
-		 * 	file.
-		 */
+	/*
+	 *	When not memory mapped we read compressed data through a buffer. The
+	 * 	compressed size of an object is not stored anywhere, but it is rarely
+	 * 	much larger than the inflated size, so we start with a window that
+	 * 	will usually hold the entire stream and double it if we guessed wrong.
+	 */
 
-		long bytesRead = inflater.getBytesRead();
-		file.seek(curOffset + bytesRead);
+	private static final int MIN_WINDOW = 512;
+	private static final int MAX_WINDOW = 64 * 1024;
+
+	private static int inputWindow(long size)
+	{
+		return (int)Math.max(MIN_WINDOW, Math.min(size + 64, MAX_WINDOW));
+	}
+
+	private static byte[] growWindow(byte[] buffer)
+	{
+		if ((buffer == null) || (buffer.length >= MAX_WINDOW)) return buffer;
+		return new byte[Math.min(buffer.length * 2, MAX_WINDOW)];
+	}
+
+	/**
+	 * Hand the next block of compressed data to the inflater. If we are
+	 * memory mapped, the inflater reads directly from the mapped region
+	 * without copying.
+	 * @return The number of bytes handed to the inflater
+	 */
+	private int fillInflater(Inflater inflater, long pos, byte[] inBuffer) throws IOException
+	{
+		int len;
+		if (map != null) {
+			ByteBuffer in = map.slice(pos, Integer.MAX_VALUE);
+			len = in.remaining();
+			if (len <= 0) throw new IOException("Unexpected EOF");
+			inflater.setInput(in);
+		} else {
+			len = file.read(inBuffer);
+			if (len <= 0) throw new IOException("Unexpected EOF");
+			inflater.setInput(inBuffer, 0, len);
+		}
+		return len;
 	}
 }
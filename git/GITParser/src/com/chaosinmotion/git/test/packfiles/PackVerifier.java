@@ -0,0 +1,494 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.common.ObjectType;
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+
+/**
+ * This performs a full integrity check of a pack file and its index, in
+ * the spirit of `git fsck`. Three checks are made:
+ *
+ * 1. The SHA-1 trailer of the pack file is recomputed over the whole file,
+ *    and compared with the copy of the trailer in the index file. This is
+ *    inherently sequential, so it is run on its own thread, reading the
+ *    file through large memory mapped blocks.
+ *
+ * 2. The CRC32 of every packed entry is compared with the CRC in the
+ *    index. This is split into chunks of objects checked in parallel.
+ *
+ * 3. Every object is resolved and its SHA-1 recomputed from its contents,
+ *    and compared with the SHA-1 in the index. This is also run in
+ *    parallel; chunks are taken in pack order so objects sharing delta
+ *    bases tend to be resolved together.
+ *
+ * The pack and index are memory mapped, so the same readers are shared
+ * by all worker threads.
+ */
+public class PackVerifier
+{
+	private static final int CHUNK_SIZE = 256;				// Objects per task
+	private static final int CHECKSUM_BLOCK = 16 << 20;		// Bytes per SHA update
+	private static final long LARGE_OBJECT = 64 << 20;		// Streamed above this
+
+	/// The object type names which start an object header, with the space
+	private static final byte[][] TYPE_NAMES = new byte[ObjectType.values().length][];
+	static {
+		for (ObjectType t : ObjectType.values()) {
+			String name = t.toString().toLowerCase(Locale.ROOT) + " ";
+			TYPE_NAMES[t.ordinal()] = name.getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * The verification phases reported to the progress listener
+	 */
+	public enum Phase
+	{
+		CHECKSUM,			// Progress in bytes
+		CRC,				// Progress in objects
+		OBJECTS				// Progress in objects
+	}
+
+	/**
+	 * Receives progress reports. The checksum runs at the same time as the
+	 * other phases, and each phase reports from multiple threads, so the
+	 * listener must be thread safe.
+	 */
+	public interface ProgressListener
+	{
+		void progress(Phase phase, long done, long total);
+	}
+
+	/**
+	 * The result of verifying a pack file
+	 */
+	public static class Result
+	{
+		/// True if the pack trailer matches the pack contents and the index
+		public final boolean checksumValid;
+
+		/// The offsets of the objects whose CRC did not match the index
+		public final List<Long> crcErrors;
+
+		/// A description of each object which could not be resolved, or
+		/// whose contents did not match its SHA-1
+		public final List<String> objectErrors;
+
+		/// The number of objects and the size of the pack file
+		public final int objectCount;
+		public final long packLength;
+
+		/// The total size of the resolved objects
+		public final long objectBytes;
+
+		/// The time taken by each phase, in nanoseconds
+		public final long checksumTime;
+		public final long crcTime;
+		public final long objectTime;
+
+		Result(boolean checksumValid, List<Long> crcErrors, List<String> objectErrors,
+				int objectCount, long packLength, long objectBytes,
+				long checksumTime, long crcTime, long objectTime)
+		{
+			this.checksumValid = checksumValid;
+			this.crcErrors = crcErrors;
+			this.objectErrors = objectErrors;
+			this.objectCount = objectCount;
+			this.packLength = packLength;
+			this.objectBytes = objectBytes;
+			this.checksumTime = checksumTime;
+			this.crcTime = crcTime;
+			this.objectTime = objectTime;
+		}
+
+		/**
+		 * Returns true if every check passed
+		 * @return True if the pack file is valid
+		 */
+		public boolean isValid()
+		{
+			return checksumValid && crcErrors.isEmpty() && objectErrors.isEmpty();
+		}
+
+		/**
+		 * The rate the pack trailer checksum was computed
+		 * @return Megabytes per second
+		 */
+		public double getChecksumThroughput()
+		{
+			return rate(packLength / 1048576.0, checksumTime);
+		}
+
+		/**
+		 * The rate the entry CRCs were verified
+		 * @return Objects per second
+		 */
+		public double getCRCThroughput()
+		{
+			return rate(objectCount, crcTime);
+		}
+
+		/**
+		 * The rate objects were resolved and hashed
+		 * @return Objects per second
+		 */
+		public double getObjectThroughput()
+		{
+			return rate(objectCount, objectTime);
+		}
+
+		private static double rate(double amount, long nanos)
+		{
+			return (nanos == 0) ? 0 : amount * 1e9 / nanos;
+		}
+
+		public void dump()
+		{
+			System.out.println("Objects: " + objectCount + ", pack bytes: " + packLength);
+			System.out.println(String.format("Checksum: %s (%.1f MB/s)",
+					checksumValid ? "valid" : "INVALID", getChecksumThroughput()));
+			System.out.println(String.format("CRC errors: %d (%.0f objects/s)",
+					crcErrors.size(), getCRCThroughput()));
+			System.out.println(String.format("Object errors: %d (%.0f objects/s, %d bytes)",
+					objectErrors.size(), getObjectThroughput(), objectBytes));
+			for (Long offset : crcErrors) {
+				System.out.println("    CRC mismatch at offset " + offset);
+			}
+			for (String err : objectErrors) {
+				System.out.println("    " + err);
+			}
+		}
+	}
+
+	/**
+	 * Output stream which hashes everything written to it
+	 */
+	private static class DigestOutputStream extends OutputStream
+	{
+		private final MessageDigest md;
+
+		DigestOutputStream(MessageDigest md)
+		{
+			this.md = md;
+		}
+
+		@Override
+		public void write(int b)
+		{
+			md.update((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len)
+		{
+			md.update(b, off, len);
+		}
+	}
+
+	private final File packFile;
+	private final File indexFile;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	private ProgressListener listener;
+	private boolean checkObjects = true;
+
+	/**
+	 * Create a verifier for the pack file and its index
+	 * @param packFile The .pack file
+	 * @param indexFile The .idx file, which must be a version 2 index
+	 */
+	public PackVerifier(File packFile, File indexFile)
+	{
+		this.packFile = packFile;
+		this.indexFile = indexFile;
+	}
+
+	/**
+	 * Set the pool the checks are run on. Defaults to the common pool.
+	 * @param pool The pool to run on
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Set the listener which receives progress reports
+	 * @param listener The listener, or null
+	 */
+	public void setProgressListener(ProgressListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Set if every object should be resolved and its SHA-1 recomputed. This
+	 * is by far the most expensive check; without it only the pack checksum
+	 * and CRCs are verified. Defaults to true.
+	 * @param flag True if objects should be checked
+	 */
+	public void setCheckObjects(boolean flag)
+	{
+		checkObjects = flag;
+	}
+
+	/**
+	 * Run the verification. Corruption is reported in the result rather
+	 * than thrown; exceptions are only thrown if the files cannot be opened
+	 * at all.
+	 * @return The result of the verification
+	 * @throws IOException
+	 */
+	public Result verify() throws IOException
+	{
+		IndexReader index = new IndexReader(indexFile, true);
+		PackReader pack = null;
+
+		try {
+			pack = new PackReader(packFile, true);
+			if (index.getVersion() < 2) {
+				throw new IOException("Version 1 index files do not contain CRCs");
+			}
+
+			int count = index.getCount();
+			long length = pack.getLength();
+			ReverseIndex rev = ReverseIndex.load(index, pack);
+
+			/*
+			 *	Start the checksum; this runs alongside the other phases
+			 */
+
+			long[] checksumTime = new long[1];
+			ForkJoinTask<Boolean> checksum = pool.submit(() -> {
+				long start = System.nanoTime();
+				boolean valid = verifyChecksum();
+				checksumTime[0] = System.nanoTime() - start;
+				return valid;
+			});
+
+			/*
+			 *	Verify the CRCs
+			 */
+
+			List<Long> crcErrors = Collections.synchronizedList(new ArrayList<>());
+			AtomicLong done = new AtomicLong();
+			PackReader pr = pack;
+
+			long start = System.nanoTime();
+			runChunks(count, (first, last) -> {
+				for (int i = first; i < last; ++i) {
+					int crc = pr.computeCRC(rev.getOffset(i), rev.getEntryLength(i));
+					if (crc != index.getCRC(rev.getIndexPosition(i))) {
+						crcErrors.add(rev.getOffset(i));
+					}
+				}
+				report(Phase.CRC, done.addAndGet(last - first), count);
+			});
+			long crcTime = System.nanoTime() - start;
+
+			/*
+			 *	Resolve and hash every object
+			 */
+
+			List<String> objectErrors = Collections.synchronizedList(new ArrayList<>());
+			AtomicLong objectBytes = new AtomicLong();
+			long objectTime = 0;
+
+			if (checkObjects) {
+				ObjectResolver resolver = new ObjectResolver(index, pack);
+				done.set(0);
+
+				start = System.nanoTime();
+				runChunks(count, (first, last) -> {
+					MessageDigest md = newDigest();
+					byte[] sha1 = new byte[20];
+					for (int i = first; i < last; ++i) {
+						index.getSHA1(rev.getIndexPosition(i), sha1);
+						try {
+							long size = hashObject(pr, resolver, rev.getOffset(i), md);
+							objectBytes.addAndGet(size);
+							if (!Hex.equals(sha1, md.digest())) {
+								objectErrors.add(Hex.toString(sha1) + ": SHA-1 mismatch");
+							}
+						}
+						catch (IOException | DataFormatException ex) {
+							md.reset();
+							objectErrors.add(Hex.toString(sha1) + ": " + ex.getMessage());
+						}
+					}
+					report(Phase.OBJECTS, done.addAndGet(last - first), count);
+				});
+				objectTime = System.nanoTime() - start;
+			}
+
+			boolean checksumValid = join(checksum);
+
+			Collections.sort(crcErrors);
+			Collections.sort(objectErrors);
+			return new Result(checksumValid, crcErrors, objectErrors, count, length,
+					objectBytes.get(), checksumTime[0], crcTime, objectTime);
+		}
+		finally {
+			if (pack != null) pack.close();
+			index.close();
+		}
+	}
+
+	/*
+	 *	Chunked parallel execution
+	 */
+
+	private interface Chunk
+	{
+		void run(int first, int last) throws IOException;
+	}
+
+	private void runChunks(int count, Chunk chunk) throws IOException
+	{
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int first = 0; first < count; first += CHUNK_SIZE) {
+			int f = first;
+			int l = Math.min(count, first + CHUNK_SIZE);
+			tasks.add(pool.submit(() -> {
+				chunk.run(f, l);
+				return null;
+			}));
+		}
+
+		for (ForkJoinTask<?> task : tasks) {
+			join(task);
+		}
+	}
+
+	private static <T> T join(ForkJoinTask<T> task) throws IOException
+	{
+		try {
+			return task.get();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted", ex);
+		}
+		catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) throw (IOException)cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private void report(Phase phase, long done, long total)
+	{
+		ProgressListener l = listener;
+		if (l != null) l.progress(phase, done, total);
+	}
+
+	/**
+	 * Compute the SHA-1 of the pack file, and compare with both the pack
+	 * trailer and the pack checksum stored in the index.
+	 */
+	private boolean verifyChecksum() throws IOException
+	{
+		MappedFile pack = new MappedFile(packFile);
+		MappedFile idx = new MappedFile(indexFile);
+
+		long end = pack.length() - 20;
+		if ((end < 0) || (idx.length() < 40)) return false;
+
+		MessageDigest md = newDigest();
+		long pos = 0;
+		while (pos < end) {
+			ByteBuffer b = pack.slice(pos, (int)Math.min(end - pos, CHECKSUM_BLOCK));
+			pos += b.remaining();
+			md.update(b);
+			report(Phase.CHECKSUM, pos, end);
+		}
+
+		byte[] digest = md.digest();
+		byte[] trailer = new byte[20];
+		byte[] indexed = new byte[20];
+		pack.get(end, trailer, 0, 20);
+		idx.get(idx.length() - 40, indexed, 0, 20);
+
+		return Hex.equals(digest, trailer) && Hex.equals(digest, indexed);
+	}
+
+	/**
+	 * Resolve the object at the given offset and add the object header and
+	 * contents to the digest. Large objects are streamed rather than held
+	 * in memory, so the workers together do not exhaust the heap.
+	 * @return The size of the object
+	 */
+	private static long hashObject(PackReader pack, ObjectResolver resolver, long offset,
+			MessageDigest md) throws IOException, DataFormatException
+	{
+		PackReader.ObjectHeader h = pack.readObjectHeader(offset);
+		boolean delta = (h.type == ObjectType.OFSDelta) || (h.type == ObjectType.REFDelta);
+
+		/*
+		 *	For a delta, the size of the result is at the start of the
+		 * 	delta data.
+		 */
+
+		long size = delta ? pack.readDeltaHeader(h).resultSize : h.size;
+		if (size <= LARGE_OBJECT) {
+			ResolvedObject obj = resolver.resolve(offset);
+			md.update(objectHeader(obj.type, obj.data.length));
+			md.update(obj.data);
+			return obj.data.length;
+		}
+
+		/*
+		 *	We need the type for the object header, which for a delta is the
+		 * 	type of its base. Stream the object through the digest.
+		 */
+
+		ObjectType type = delta ? resolver.getInfo(offset).type : h.type;
+		md.update(objectHeader(type, size));
+		ObjectType t = resolver.resolve(offset, new DigestOutputStream(md));
+		if (t != type) throw new IOException("Object type mismatch");
+		return size;
+	}
+
+	/**
+	 * The object header hashed ahead of the object contents, such as
+	 * 'blob 1234\0'.
+	 */
+	private static byte[] objectHeader(ObjectType type, long size)
+	{
+		byte[] name = TYPE_NAMES[type.ordinal()];
+		String len = Long.toString(size);
+		byte[] ret = new byte[name.length + len.length() + 1];
+		System.arraycopy(name, 0, ret, 0, name.length);
+		for (int i = 0; i < len.length(); ++i) {
+			ret[name.length + i] = (byte)len.charAt(i);
+		}
+		return ret;		// ends with the null
+	}
+
+	private static MessageDigest newDigest()
+	{
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+}
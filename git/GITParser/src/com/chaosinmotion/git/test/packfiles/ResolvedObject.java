@@ -0,0 +1,21 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.common.ObjectType;
+
+/**
+ * The fully resolved contents of an object stored in a pack file. If the
+ * object was stored as a delta, the type is the type of the base object the
+ * delta chain eventually resolves to, and the data is the result of applying
+ * the deltas.
+ */
+public class ResolvedObject
+{
+	public final ObjectType type;
+	public final byte[] data;
+
+	public ResolvedObject(ObjectType type, byte[] data)
+	{
+		this.type = type;
+		this.data = data;
+	}
+}
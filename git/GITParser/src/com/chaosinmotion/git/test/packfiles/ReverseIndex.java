@@ -0,0 +1,252 @@
+package com.chaosinmotion.git.test.packfiles;
+
+import com.chaosinmotion.git.test.utils.Hex;
+import com.chaosinmotion.git.test.utils.MappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The pack index sorts objects by SHA-1. This provides the reverse mapping:
+ * the objects sorted in the order they appear in the pack file. Given the
+ * offset of an object, this lets us find where the object ends (which is
+ * where the next object starts), and from there the position of the object
+ * in the index, which gives us its CRC.
+ *
+ * Newer versions of GIT write the reverse index alongside the pack as a
+ * .rev file:
+ *
+ * https://git-scm.com/docs/gitformat-pack#_pack_rev_files_have_the_format
+ *
+ * If the .rev file is present we memory map it, and look up the offsets in
+ * the index as needed. Otherwise we build the table in memory by sorting
+ * the offsets in the index, which is done with a radix sort, since the
+ * offsets are bounded by the pack file length.
+ *
+ * The table is immutable once built, so it may be shared across threads.
+ * (If the .rev file is used, so must the index reader.)
+ */
+public class ReverseIndex
+{
+	private static final int SIGNATURE = 0x52494458;		// "RIDX"
+
+	private final int count;
+	private final long dataEnd;			// Offset of the pack trailer
+
+	// Set if we built the table in memory
+	private final long[] offsets;		// Object offsets in pack order
+	private final int[] positions;		// Index positions in pack order
+
+	// Set if we read a .rev file
+	private final MappedFile rev;
+	private final IndexReader index;
+
+	/**
+	 * Get the reverse index for a pack file. If there is a .rev file next
+	 * to the pack file which matches the pack, that is used; otherwise the
+	 * reverse index is built in memory. As with GIT, a .rev file which is
+	 * stale, corrupt or of a version we don't understand is ignored.
+	 * @param index The index of the pack file
+	 * @param pack The pack file
+	 * @return The reverse index
+	 * @throws IOException
+	 */
+	public static ReverseIndex load(IndexReader index, PackReader pack) throws IOException
+	{
+		File packFile = pack.getFile();
+		String name = packFile.getName();
+		if (name.endsWith(".pack")) {
+			File revFile = new File(packFile.getParentFile(), name.substring(0, name.length() - 5) + ".rev");
+			if (revFile.isFile()) {
+				try {
+					return new ReverseIndex(revFile, index, pack);
+				}
+				catch (IOException ex) {
+					// Fall through and build our own
+				}
+			}
+		}
+		return new ReverseIndex(index, pack.getLength());
+	}
+
+	/**
+	 * Build the reverse index for a pack file in memory
+	 * @param index The index of the pack file
+	 * @param packLength The length of the pack file in bytes
+	 * @throws IOException
+	 */
+	public ReverseIndex(IndexReader index, long packLength) throws IOException
+	{
+		count = index.getCount();
+		dataEnd = packLength - 20;
+		rev = null;
+		this.index = null;
+
+		offsets = new long[count];
+		positions = new int[count];
+		for (int i = 0; i < count; ++i) {
+			offsets[i] = index.getOffset(i);
+			positions[i] = i;
+		}
+		sort(offsets, positions, dataEnd);
+
+		if ((count > 0) && ((offsets[count - 1] >= dataEnd) || (offsets[0] < 12))) {
+			throw new IOException("Index offset outside of the pack file");
+		}
+	}
+
+	/**
+	 * Open a .rev file
+	 * @param revFile The .rev file
+	 * @param index The index of the pack file
+	 * @param pack The pack file
+	 * @throws IOException
+	 */
+	public ReverseIndex(File revFile, IndexReader index, PackReader pack) throws IOException
+	{
+		count = index.getCount();
+		dataEnd = pack.getLength() - 20;
+		offsets = null;
+		positions = null;
+		this.index = index;
+
+		/*
+		 *	The header is the signature, version and hash ID, followed by
+		 * 	the table of index positions, the pack checksum and the checksum
+		 * 	of this file.
+		 */
+
+		rev = new MappedFile(revFile);
+		if (rev.length() != 12 + (long)count * 4 + 40) {
+			throw new IOException("Invalid .rev file size");
+		}
+		if (rev.getInt(0) != SIGNATURE) {
+			throw new IOException("Invalid .rev file header");
+		}
+		if (rev.getInt(4) != 1) {
+			throw new IOException("Unsupported .rev file version " + rev.getInt(4));
+		}
+		if (rev.getInt(8) != 1) {
+			throw new IOException("Unsupported .rev file hash " + rev.getInt(8));
+		}
+
+		byte[] checksum = new byte[20];
+		rev.get(12 + (long)count * 4, checksum, 0, 20);
+		if (!Hex.equals(checksum, pack.getChecksum())) {
+			throw new IOException(".rev file does not match pack file");
+		}
+	}
+
+	/**
+	 * Sort the offsets, carrying the index positions along with them. This
+	 * is a least significant digit radix sort, 16 bits at a time; since our
+	 * offsets are bounded by the pack length, a pack smaller than 4GB takes
+	 * just two passes.
+	 */
+	private static void sort(long[] keys, int[] values, long max)
+	{
+		int n = keys.length;
+		long[] tmpKeys = new long[n];
+		int[] tmpValues = new int[n];
+		int[] counts = new int[65537];
+
+		for (int shift = 0; (shift < 64) && ((max >>> shift) != 0); shift += 16) {
+			Arrays.fill(counts, 0);
+			for (int i = 0; i < n; ++i) {
+				++counts[(int)((keys[i] >>> shift) & 0xFFFF) + 1];
+			}
+			for (int i = 0; i < 65536; ++i) {
+				counts[i + 1] += counts[i];
+			}
+			for (int i = 0; i < n; ++i) {
+				int d = counts[(int)((keys[i] >>> shift) & 0xFFFF)]++;
+				tmpKeys[d] = keys[i];
+				tmpValues[d] = values[i];
+			}
+
+			System.arraycopy(tmpKeys, 0, keys, 0, n);
+			System.arraycopy(tmpValues, 0, values, 0, n);
+		}
+	}
+
+	/**
+	 * The number of objects in the pack
+	 * @return The object count
+	 */
+	public int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Find the position in pack order of the object at the given offset
+	 * @param offset The offset of the object header in the pack file
+	 * @return The position of the object in pack order, or -1 if there is no
+	 * object at that offset
+	 * @throws IOException
+	 */
+	public int findOffset(long offset) throws IOException
+	{
+		int min = 0;
+		int max = count;
+		while (min < max) {
+			int mid = (min + max) >>> 1;
+			long value = getOffset(mid);
+			if (value == offset) return mid;
+			if (value < offset) {
+				min = mid + 1;
+			} else {
+				max = mid;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * The offset of the object at the given position in pack order
+	 * @param pos The position in pack order
+	 * @return The offset of the object header in the pack file
+	 * @throws IOException
+	 */
+	public long getOffset(int pos) throws IOException
+	{
+		if (offsets != null) return offsets[pos];
+		return index.getOffset(getIndexPosition(pos));
+	}
+
+	/**
+	 * The position in the index (that is, in SHA-1 order) of the object at
+	 * the given position in pack order
+	 * @param pos The position in pack order
+	 * @return The position in the index file
+	 * @throws IOException
+	 */
+	public int getIndexPosition(int pos) throws IOException
+	{
+		if (positions != null) return positions[pos];
+
+		if ((pos < 0) || (pos >= count)) {
+			throw new IndexOutOfBoundsException("Invalid pack position " + pos);
+		}
+		int ret = rev.getInt(12 + (long)pos * 4);
+		if ((ret < 0) || (ret >= count)) {
+			throw new IOException("Invalid .rev file entry");
+		}
+		return ret;
+	}
+
+	/**
+	 * The number of bytes the object at the given position occupies in the
+	 * pack file, including the object header and any delta base reference.
+	 * This is the span covered by the CRC in the index file.
+	 * @param pos The position in pack order
+	 * @return The length of the packed entry in bytes
+	 * @throws IOException
+	 */
+	public long getEntryLength(int pos) throws IOException
+	{
+		long end = (pos + 1 < count) ? getOffset(pos + 1) : dataEnd;
+		return end - getOffset(pos);
+	}
+}
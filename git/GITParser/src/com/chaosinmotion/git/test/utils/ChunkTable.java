@@ -0,0 +1,126 @@
+package com.chaosinmotion.git.test.utils;
+
+import java.io.IOException;
+
+/**
+ * The table of contents of a GIT "chunk file", the format shared by the
+ * commit-graph and multi-pack-index files. The table is a list of 12 byte
+ * entries, each a 4 byte chunk ID followed by the 8 byte offset of the chunk
+ * in the file, terminated by an entry with an ID of zero whose offset marks
+ * the end of the last chunk.
+ *
+ * https://git-scm.com/docs/gitformat-chunk
+ */
+public class ChunkTable
+{
+	private final int[] ids;
+	private final long[] offsets;		// One more than ids
+
+	/**
+	 * Read the chunk table
+	 * @param map The mapped file
+	 * @param pos The offset of the table in the file
+	 * @param count The number of chunks, not including the terminator
+	 * @throws IOException
+	 */
+	public ChunkTable(MappedFile map, long pos, int count) throws IOException
+	{
+		ids = new int[count];
+		offsets = new long[count + 1];
+
+		for (int i = 0; i <= count; ++i) {
+			int id = map.getInt(pos);
+			long offset = map.getLong(pos + 4);
+			pos += 12;
+
+			if ((offset < 0) || (offset > map.length())) {
+				throw new IOException("Invalid chunk offset");
+			}
+			if ((i > 0) && (offset < offsets[i - 1])) {
+				throw new IOException("Chunks out of order");
+			}
+			if (i < count) {
+				if (id == 0) throw new IOException("Unexpected end of chunk table");
+				ids[i] = id;
+			} else if (id != 0) {
+				throw new IOException("Missing chunk table terminator");
+			}
+			offsets[i] = offset;
+		}
+	}
+
+	/**
+	 * Convert a four character chunk name such as "OIDF" to its ID
+	 * @param name The chunk name
+	 * @return The chunk ID
+	 */
+	public static int id(String name)
+	{
+		return (name.charAt(0) << 24) | (name.charAt(1) << 16) | (name.charAt(2) << 8) | name.charAt(3);
+	}
+
+	/**
+	 * Returns true if the file contains the chunk
+	 * @param id The chunk ID
+	 * @return True if the chunk is present
+	 */
+	public boolean contains(int id)
+	{
+		return find(id) != -1;
+	}
+
+	/**
+	 * The offset of the chunk in the file
+	 * @param id The chunk ID
+	 * @return The offset of the chunk, or -1 if not present
+	 */
+	public long getOffset(int id)
+	{
+		int i = find(id);
+		return (i == -1) ? -1 : offsets[i];
+	}
+
+	/**
+	 * The length of the chunk in bytes
+	 * @param id The chunk ID
+	 * @return The length of the chunk, or -1 if not present
+	 */
+	public long getLength(int id)
+	{
+		int i = find(id);
+		return (i == -1) ? -1 : offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * Find a required chunk, checking its length
+	 * @param id The chunk ID
+	 * @param length The expected length of the chunk
+	 * @return The offset of the chunk
+	 * @throws IOException if the chunk is missing or the wrong size
+	 */
+	public long require(int id, long length) throws IOException
+	{
+		int i = find(id);
+		if (i == -1) {
+			throw new IOException("Missing chunk " + name(id));
+		}
+		if (offsets[i + 1] - offsets[i] != length) {
+			throw new IOException("Invalid chunk size for " + name(id));
+		}
+		return offsets[i];
+	}
+
+	private int find(int id)
+	{
+		for (int i = 0; i < ids.length; ++i) {
+			if (ids[i] == id) return i;
+		}
+		return -1;
+	}
+
+	private static String name(int id)
+	{
+		char[] c = { (char)(id >>> 24), (char)((id >>> 16) & 0xff), (char)((id >>> 8) & 0xff), (char)(id & 0xff) };
+		return new String(c);
+	}
+}
@@ -1,11 +1,31 @@
 package com.chaosinmotion.git.test.utils;
 
+import java.util.Arrays;
+
 /**
  * In order to understand what's going on I need a way to dump the contents
  * of a byte array as a readable hex stream.
  */
 public class Hex
 {
+	/*
+	 *	Lookup tables. DIGITS gives the hex digit for each nibble; VALUES
+	 * 	gives the value of each ASCII hex digit, or -1 for anything that is
+	 * 	not a hex digit.
+	 */
+
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+	private static final byte[] VALUES = new byte[128];
+
+	static {
+		Arrays.fill(VALUES, (byte)-1);
+		for (int i = 0; i < 10; ++i) VALUES['0' + i] = (byte)i;
+		for (int i = 0; i < 6; ++i) {
+			VALUES['a' + i] = (byte)(10 + i);
+			VALUES['A' + i] = (byte)(10 + i);
+		}
+	}
+
 	public static void dump(byte[] buffer, int start, int len)
 	{
 		int rlen = buffer.length - start;
@@ -49,6 +69,26 @@ public class Hex
 		dump(buffer, 0, buffer.length);
 	}
 
+	/**
+	 * The value of a hex digit
+	 * @param c The character
+	 * @return The value 0-15, or -1 if this is not a hex digit
+	 */
+	public static int digit(int c)
+	{
+		return ((c & ~0x7F) == 0) ? VALUES[c] : -1;
+	}
+
+	/**
+	 * The hex digit for a value
+	 * @param v The value; only the low 4 bits are used
+	 * @return The lower case hex digit
+	 */
+	public static char toDigit(int v)
+	{
+		return DIGITS[v & 0xF];
+	}
+
 	/**
 	 * Convert a byte array to a hex string
 	 * @param buffer
@@ -56,11 +96,88 @@ public class Hex
 	 */
 	public static String toString(byte[] buffer)
 	{
-		StringBuilder sb = new StringBuilder();
-		for (byte b: buffer) {
-			sb.append(String.format("%02x",b));
+		char[] c = new char[buffer.length * 2];
+		encode(buffer, 0, buffer.length, c, 0);
+		return new String(c);
+	}
+
+	/**
+	 * Write bytes as lower case hex digits. This works for any number of
+	 * bytes, so a whole table of SHA-1 values held end to end may be
+	 * converted in one call.
+	 * @param src The bytes to convert
+	 * @param off The offset of the first byte
+	 * @param len The number of bytes
+	 * @param dest The destination, which receives len * 2 characters
+	 * @param destOff The offset to write to
+	 */
+	public static void encode(byte[] src, int off, int len, char[] dest, int destOff)
+	{
+		for (int i = 0; i < len; ++i) {
+			int b = src[off + i];
+			dest[destOff++] = DIGITS[(b >> 4) & 0xF];
+			dest[destOff++] = DIGITS[b & 0xF];
+		}
+	}
+
+	/**
+	 * Write bytes as lower case hex digits in ASCII
+	 * @param src The bytes to convert
+	 * @param off The offset of the first byte
+	 * @param len The number of bytes
+	 * @param dest The destination, which receives len * 2 bytes
+	 * @param destOff The offset to write to
+	 */
+	public static void encode(byte[] src, int off, int len, byte[] dest, int destOff)
+	{
+		for (int i = 0; i < len; ++i) {
+			int b = src[off + i];
+			dest[destOff++] = (byte)DIGITS[(b >> 4) & 0xF];
+			dest[destOff++] = (byte)DIGITS[b & 0xF];
+		}
+	}
+
+	/**
+	 * Convert hex digits to bytes.
+	 * @param src The hex digits
+	 * @param off The offset of the first digit
+	 * @param len The number of digits, which must be even
+	 * @param dest The destination, which receives len / 2 bytes
+	 * @param destOff The offset to write to
+	 * @throws IllegalArgumentException if there is an odd number of digits
+	 * or any character is not a hex digit
+	 */
+	public static void decode(CharSequence src, int off, int len, byte[] dest, int destOff)
+	{
+		if ((len & 1) != 0) throw new IllegalArgumentException("Odd number of hex digits");
+		for (int i = 0; i < len; i += 2) {
+			int hi = digit(src.charAt(off + i));
+			int lo = digit(src.charAt(off + i + 1));
+			if ((hi | lo) < 0) throw new IllegalArgumentException("Invalid hex digit at " + (off + i));
+			dest[destOff++] = (byte)((hi << 4) | lo);
+		}
+	}
+
+	/**
+	 * Convert hex digits held as ASCII bytes, such as the SHA-1 values in
+	 * commit and tag objects, to bytes.
+	 * @param src The hex digits
+	 * @param off The offset of the first digit
+	 * @param len The number of digits, which must be even
+	 * @param dest The destination, which receives len / 2 bytes
+	 * @param destOff The offset to write to
+	 * @throws IllegalArgumentException if there is an odd number of digits
+	 * or any byte is not a hex digit
+	 */
+	public static void decode(byte[] src, int off, int len, byte[] dest, int destOff)
+	{
+		if ((len & 1) != 0) throw new IllegalArgumentException("Odd number of hex digits");
+		for (int i = 0; i < len; i += 2) {
+			int hi = digit(src[off + i]);
+			int lo = digit(src[off + i + 1]);
+			if ((hi | lo) < 0) throw new IllegalArgumentException("Invalid hex digit at " + (off + i));
+			dest[destOff++] = (byte)((hi << 4) | lo);
 		}
-		return sb.toString();
 	}
 
 	public static String toCompactString(byte[] buffer)
@@ -82,32 +199,18 @@ public class Hex
 		return sb.toString();
 	}
 
-	private static int toHex(char c)
-	{
-		if ((c >= 'a') && (c <= 'f')) return 10 + c - 'a';
-		if ((c >= 'A') && (c <= 'F')) return 10 + c - 'A';
-		if ((c >= '0') && (c <= '9')) return c - '0';
-		return 0;		// should never happen
-	}
-
 	/**
 	 * Convert a hex string to a byte array
 	 * @param buffer
 	 * @return
+	 * @throws IllegalArgumentException if the string is not an even number
+	 * of hex digits
 	 */
 
 	public static byte[] toByteArray(String buffer)
 	{
-		int i,len = buffer.length();
-		byte[] ret = new byte[len/2];
-
-		int j = 0;
-		for (i = 0; (i < len) && (j < ret.length); i += 2) {
-			int hi = toHex(buffer.charAt(i));
-			int lo = toHex(buffer.charAt(i+1));
-			ret[j++] = (byte)((hi << 4) | lo);
-		}
-
+		byte[] ret = new byte[buffer.length() / 2];
+		decode(buffer, 0, buffer.length(), ret, 0);
 		return ret;
 	}
 
@@ -0,0 +1,48 @@
+package com.chaosinmotion.git.test.utils;
+
+import java.util.zip.Inflater;
+
+/**
+ * A per-thread pool of zlib inflaters. Creating an Inflater allocates native
+ * zlib state, which is only released when end() is called (or, eventually,
+ * when the object is garbage collected). Since we inflate a very large number
+ * of small objects, we keep one inflater per thread and reset it between
+ * uses instead.
+ *
+ * Every acquire must be paired with a release, normally in a finally block.
+ * Nested acquires on the same thread are fine; the extra inflaters are
+ * ended when released.
+ */
+public class InflaterPool
+{
+	private static final ThreadLocal<Inflater> pool = new ThreadLocal<>();
+
+	/**
+	 * Get an inflater, ready to accept input
+	 * @return An inflater which must be returned with release
+	 */
+	public static Inflater acquire()
+	{
+		Inflater inflater = pool.get();
+		if (inflater == null) return new Inflater();
+
+		pool.set(null);
+		return inflater;
+	}
+
+	/**
+	 * Return an inflater to the pool. The inflater is reset so it can be
+	 * reused; if this thread already has a pooled inflater, this one is
+	 * ended instead.
+	 * @param inflater The inflater to release
+	 */
+	public static void release(Inflater inflater)
+	{
+		if (pool.get() == null) {
+			inflater.reset();
+			pool.set(inflater);
+		} else {
+			inflater.end();
+		}
+	}
+}
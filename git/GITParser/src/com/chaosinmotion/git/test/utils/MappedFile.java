@@ -0,0 +1,267 @@
+package com.chaosinmotion.git.test.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * This maps an entire file into memory for read-only access. A single
+ * MappedByteBuffer can only address 2GB, so larger files (such as big pack
+ * files) are mapped as a series of 1GB segments.
+ *
+ * All of the accessors take an absolute byte offset into the file and never
+ * touch the position of the underlying buffers, so a single mapped file can
+ * be shared safely across threads.
+ *
+ * Note that Java does not provide a way to explicitly unmap a file; the
+ * mapping is released when the buffers are garbage collected. Closing a
+ * mapped file drops our references to them, so the mapping can be released
+ * even if this object is still reachable.
+ */
+public class MappedFile implements Closeable
+{
+	private static final int SEGMENT_SHIFT = 30;
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+	private final MappedByteBuffer[] segments;		// Cleared on close
+	private final long length;
+
+	/**
+	 * Maps the specified file into memory. The file channel is closed once
+	 * the file is mapped; the mapping remains valid afterwards.
+	 * @param f The file to map
+	 * @throws IOException
+	 */
+	public MappedFile(File f) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			length = channel.size();
+
+			int count = (int)((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; ++i) {
+				long start = (long)i << SEGMENT_SHIFT;
+				long size = Math.min(SEGMENT_SIZE, length - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		}
+	}
+
+	/**
+	 * The length of the mapped file in bytes
+	 * @return The file length
+	 */
+	public long length()
+	{
+		return length;
+	}
+
+	/**
+	 * Read a single unsigned byte at the given offset.
+	 * @param pos The absolute offset into the file
+	 * @return The byte (0-255), or -1 if the offset is past the end of file
+	 */
+	public int get(long pos)
+	{
+		if ((pos < 0) || (pos >= length)) return -1;
+		return segments[(int)(pos >>> SEGMENT_SHIFT)].get((int)(pos & SEGMENT_MASK)) & 0xff;
+	}
+
+	/**
+	 * Read a big-endian 32-bit integer at the given offset
+	 * @param pos The absolute offset into the file
+	 * @return The integer
+	 * @throws IOException
+	 */
+	public int getInt(long pos) throws IOException
+	{
+		checkRange(pos, 4);
+
+		int index = (int)(pos & SEGMENT_MASK);
+		MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+		if (index + 4 <= segment.limit()) {
+			return segment.getInt(index);
+		}
+
+		// Straddles a segment boundary
+		int ret = 0;
+		for (int i = 0; i < 4; ++i) {
+			ret = (ret << 8) | get(pos + i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Read a big-endian 64-bit integer at the given offset
+	 * @param pos The absolute offset into the file
+	 * @return The long integer
+	 * @throws IOException
+	 */
+	public long getLong(long pos) throws IOException
+	{
+		checkRange(pos, 8);
+
+		int index = (int)(pos & SEGMENT_MASK);
+		MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+		if (index + 8 <= segment.limit()) {
+			return segment.getLong(index);
+		}
+
+		// Straddles a segment boundary
+		long ret = 0;
+		for (int i = 0; i < 8; ++i) {
+			ret = (ret << 8) | get(pos + i);
+		}
+		return ret;
+	}
+
+	/**
+	 * Copy bytes out of the file into the supplied buffer
+	 * @param pos The absolute offset into the file
+	 * @param buffer The buffer to copy into
+	 * @param off The offset into the buffer
+	 * @param len The number of bytes to copy
+	 * @throws IOException
+	 */
+	public void get(long pos, byte[] buffer, int off, int len) throws IOException
+	{
+		checkRange(pos, len);
+
+		while (len > 0) {
+			int index = (int)(pos & SEGMENT_MASK);
+			MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+			int rlen = Math.min(len, segment.limit() - index);
+
+			segment.get(index, buffer, off, rlen);
+			pos += rlen;
+			off += rlen;
+			len -= rlen;
+		}
+	}
+
+	/**
+	 * Lexically compare the bytes in the file at the given position against
+	 * the key provided, treating the bytes as unsigned. This does not
+	 * allocate memory, so it is suitable for binary searches against sorted
+	 * SHA-1 tables.
+	 * @param pos The absolute offset into the file
+	 * @param key The key to compare against
+	 * @param off The offset into the key
+	 * @param len The number of bytes to compare
+	 * @return Negative if the key is less than the file contents, positive
+	 * if greater, and zero if equal.
+	 * @throws IOException
+	 */
+	public int compare(long pos, byte[] key, int off, int len) throws IOException
+	{
+		checkRange(pos, len);
+
+		/*
+		 *	If the range is in one segment, compare eight bytes at a time;
+		 * 	as both sides are read big-endian, an unsigned comparison of the
+		 * 	longs orders the same way as comparing the bytes.
+		 */
+
+		int index = (int)(pos & SEGMENT_MASK);
+		MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+		if (index + len <= segment.limit()) {
+			int i = 0;
+			for (; i + 8 <= len; i += 8) {
+				long a = (long)LONG.get(key, off + i);
+				long b = segment.getLong(index + i);
+				if (a != b) return (Long.compareUnsigned(a, b) < 0) ? -1 : 1;
+			}
+			for (; i < len; ++i) {
+				int cmp = (key[off + i] & 0xff) - (segment.get(index + i) & 0xff);
+				if (cmp != 0) return cmp;
+			}
+			return 0;
+		}
+
+		// Straddles a segment boundary
+		for (int i = 0; i < len; ++i) {
+			int cmp = (key[off + i] & 0xff) - get(pos + i);
+			if (cmp != 0) return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * Return a read-only view of the file starting at the specified position.
+	 * The view will not cross a segment boundary, so the returned buffer may
+	 * hold fewer than the requested number of bytes; callers should request
+	 * the rest with a subsequent call.
+	 * @param pos The absolute offset into the file
+	 * @param len The maximum number of bytes to return
+	 * @return A buffer holding between 1 and len bytes, or an empty buffer
+	 * if we are at the end of the file.
+	 */
+	public ByteBuffer slice(long pos, int len)
+	{
+		if ((pos < 0) || (pos >= length) || (len <= 0)) {
+			return ByteBuffer.allocate(0);
+		}
+
+		int index = (int)(pos & SEGMENT_MASK);
+		MappedByteBuffer segment = segments[(int)(pos >>> SEGMENT_SHIFT)];
+		int rlen = Math.min(len, segment.limit() - index);
+
+		return segment.slice(index, rlen).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Verify the SHA-1 checksum which GIT writes as the last 20 bytes of
+	 * most of its files (such as the commit-graph and multi-pack-index),
+	 * covering everything before it.
+	 * @return True if the checksum matches the file contents
+	 * @throws IOException
+	 * @throws NoSuchAlgorithmException
+	 */
+	public boolean verifyChecksum() throws IOException, NoSuchAlgorithmException
+	{
+		long flen = length - 20;
+		if (flen < 0) return false;
+
+		MessageDigest md = MessageDigest.getInstance("SHA-1");
+		long pos = 0;
+		while (pos < flen) {
+			ByteBuffer b = slice(pos, (int)Math.min(flen - pos, Integer.MAX_VALUE));
+			pos += b.remaining();
+			md.update(b);
+		}
+
+		byte[] sha1 = new byte[20];
+		get(flen, sha1, 0, 20);
+		return Hex.equals(sha1, md.digest());
+	}
+
+	/**
+	 * Release our references to the mapped buffers. The file must not be
+	 * used after it is closed.
+	 */
+	@Override
+	public void close()
+	{
+		Arrays.fill(segments, null);
+	}
+
+	private void checkRange(long pos, long len) throws IOException
+	{
+		if ((pos < 0) || (len < 0) || (pos + len > length)) {
+			throw new IOException("Unexpected EOF");
+		}
+	}
+}
@@ -12,7 +12,7 @@ import java.io.IOException;
  */
 public interface RandomAccess
 {
-	void seek(int offset) throws IOException;
+	void seek(long offset) throws IOException;
 	int read(byte[] buffer, int i, int rlen) throws IOException;
 	long length() throws IOException;
 	void close() throws IOException;
@@ -16,9 +16,10 @@ public class RandomAccessByteArray implements RandomAccess
 	}
 
 	@Override
-	public void seek(int offset) throws IOException
+	public void seek(long offset) throws IOException
 	{
-		this.offset = offset;
+		// Seeking past the end of the array puts us at EOF
+		this.offset = (int)Math.min(offset, data.length);
 	}
 
 	@Override
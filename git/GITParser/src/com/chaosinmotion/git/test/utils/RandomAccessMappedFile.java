@@ -0,0 +1,61 @@
+package com.chaosinmotion.git.test.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Provides a random access interface across a memory mapped file. Unlike
+ * RandomAccessByteArray this is not limited to 2GB, and unlike
+ * RandomAccessReader, reads are copied straight out of the mapped file
+ * without a system call.
+ */
+public class RandomAccessMappedFile implements RandomAccess
+{
+	private long offset;
+	private MappedFile file;
+
+	public RandomAccessMappedFile(File f) throws IOException
+	{
+		this.file = new MappedFile(f);
+	}
+
+	public RandomAccessMappedFile(MappedFile file)
+	{
+		this.file = file;
+	}
+
+	@Override
+	public void seek(long offset) throws IOException
+	{
+		this.offset = offset;
+	}
+
+	@Override
+	public int read(byte[] buffer, int off, int len) throws IOException
+	{
+		if ((off < 0) || (len < 0) || ((off + len) > buffer.length)) {
+			throw new IndexOutOfBoundsException();
+		}
+
+		long remain = file.length() - offset;
+		if (remain <= 0) return -1;
+
+		if (len > remain) len = (int)remain;
+		file.get(offset, buffer, off, len);
+		offset += len;
+
+		return len;
+	}
+
+	@Override
+	public long length() throws IOException
+	{
+		return file.length();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		file = null;
+	}
+}
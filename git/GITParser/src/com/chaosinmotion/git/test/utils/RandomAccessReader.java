@@ -17,7 +17,7 @@ public class RandomAccessReader implements RandomAccess
 	}
 
 	@Override
-	public void seek(int offset) throws IOException
+	public void seek(long offset) throws IOException
 	{
 		file.seek(offset);
 	}